@@ -0,0 +1,52 @@
+package com.avnan.blecontrollerapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Encoding a command for every write and parsing every notification
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlProtocolBenchmark {
+    private final byte[] mCommand = new byte[ControlProtocol.COMMAND_LENGTH];
+    private final byte[] mAck = "rt2,1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] mOther = "rt3,FF,20,1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private int mUnit;
+
+    @Benchmark
+    public byte[] encodeTimerCommand() {
+        mUnit = mUnit % ControlProtocol.MAX_UNIT_ID + 1;
+        ControlProtocol.encodeTimerCommand(mCommand, 0, ControlProtocol.TIMER_FORTY, mUnit);
+        return mCommand;
+    }
+
+    @Benchmark
+    public int decodeAcknowledgement() {
+        return ControlProtocol.decodeAcknowledgement(mAck, 0, mAck.length);
+    }
+
+    @Benchmark
+    public int decodeNonAcknowledgement() {
+        return ControlProtocol.decodeAcknowledgement(mOther, 0, mOther.length);
+    }
+
+    // What the app did before ControlProtocol: build the command as a String and encode it
+    @Benchmark
+    public byte[] legacyStringCommand() {
+        mUnit = mUnit % ControlProtocol.MAX_UNIT_ID + 1;
+        return ("rt3,FF,40," + mUnit + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,81 @@
+package com.avnan.blecontrollerapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// A notification on its way from the GATT callback to a listener, minus the thread hops
+// The executors run tasks inline, so this measures the copying, event creation and listener
+// matching that happen on the way, not scheduling.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatchBenchmark {
+    private static final String ADDRESS = "24:0A:C4:00:00:01";
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final byte[] mAck = "rt2,1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private final UUID mCharacteristic = GattAttributes.CONTROL_ACKNOWLEDGE_UUID;
+    private final NotificationRing mRing = new NotificationRing();
+    private final GattEventBus mBus = new GattEventBus();
+    private Blackhole mBlackhole;
+    private long mTime;
+
+    private final NotificationRing.Consumer mConsumer = new NotificationRing.Consumer() {
+        @Override
+        public void onNotification(String address, UUID characteristic, byte[] value, int length,
+                                   long timestampNanos) {
+            mBus.post(GattEvent.dataAvailable(address, characteristic, value, length, timestampNanos));
+        }
+    };
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mBlackhole = blackhole;
+        // One screen listening to its device, one to another device
+        mBus.register(new GattEventBus.Listener() {
+            @Override
+            public void onGattEvent(GattEvent event) {
+                mBlackhole.consume(ControlProtocol.isAcceptedAcknowledgement(event.getValue()));
+            }
+        }, INLINE, ADDRESS);
+        mBus.register(new GattEventBus.Listener() {
+            @Override
+            public void onGattEvent(GattEvent event) {
+                mBlackhole.consume(event);
+            }
+        }, INLINE, "24:0A:C4:00:00:02");
+    }
+
+    @Benchmark
+    public void post() {
+        mBus.post(GattEvent.dataAvailable(ADDRESS, mCharacteristic, mAck, mAck.length, ++mTime));
+    }
+
+    @Benchmark
+    public int ringOfferAndDrain() {
+        mRing.offer(ADDRESS, mCharacteristic, mAck, ++mTime);
+        return mRing.drain(mConsumer);
+    }
+}
@@ -0,0 +1,83 @@
+package com.avnan.blecontrollerapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Folding scan results into the store and diffing consecutive snapshots of it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanStoreBenchmark {
+    @Param({"16", "256"})
+    public int devices;
+
+    private String[] mAddresses;
+    private String[] mNames;
+    private ScanResultStore<Object> mStore;
+    private ScanSnapshot mBefore;
+    private ScanSnapshot mAfter;
+    private int mNext;
+    private long mTime;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        mAddresses = new String[devices];
+        mNames = new String[devices];
+        mStore = new ScanResultStore<>();
+        for (int i = 0; i < devices; i++) {
+            mAddresses[i] = String.format("24:0A:C4:%02X:%02X:%02X", i >> 16 & 0xFF, i >> 8 & 0xFF, i & 0xFF);
+            mNames[i] = "HRV-" + i;
+            mStore.update(mAddresses[i], mNames[i], null, -60 - random.nextInt(30), i);
+        }
+        mBefore = mStore.snapshot();
+        // A typical publish interval: a third of the devices moved in RSSI, a few came and went
+        ScanResultStore<Object> after = new ScanResultStore<>();
+        for (int i = devices / 16; i < devices; i++) {
+            int rssi = i % 3 == 0 ? -50 - random.nextInt(40) : mBefore.getRssi(i);
+            after.update(mAddresses[i], mNames[i], null, rssi, i);
+        }
+        for (int i = 0; i < devices / 16; i++) {
+            after.update("30:AE:A4:00:00:" + String.format("%02X", i), "HRV-new-" + i, null, -70, i);
+        }
+        mAfter = after.snapshot();
+    }
+
+    // The common case: an advertisement from a device already in the list
+    @Benchmark
+    public int updateExisting() {
+        mNext = (mNext + 1) % devices;
+        return mStore.update(mAddresses[mNext], mNames[mNext], null, -55, ++mTime);
+    }
+
+    @Benchmark
+    public ScanSnapshot snapshot() {
+        return mStore.snapshot();
+    }
+
+    @Benchmark
+    public ScanSnapshot rankedSnapshot() {
+        return mStore.rankedSnapshot();
+    }
+
+    @Benchmark
+    public ListDiff.Result diff() {
+        return ScanSnapshot.diff(mBefore, mAfter);
+    }
+}
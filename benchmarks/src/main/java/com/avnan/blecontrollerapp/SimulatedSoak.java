@@ -0,0 +1,362 @@
+package com.avnan.blecontrollerapp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Many virtual controllers on a SimulatedTransport, driven through the same operation queue,
+// reconnect scheduler and metrics as BluetoothLeService uses, for throughput, reconnect-storm and
+// soak runs without hardware
+// Every device sends timer commands at a fixed rate and times the acknowledgements. Halfway
+// through, every controller goes out of range for a few seconds and comes back, so all links drop
+// and reconnect at once. At the end a summary is printed, with verbose=true also the metrics of
+// every device.
+//
+// Arguments, all optional, as name=value:
+//   devices=20 seconds=60 rate=5 (commands per device per second) latency=5-30 (ms)
+//   loss=0.01 disconnect=0.001 connectFailure=0.05 storm=3 (seconds out of range, 0 for none)
+//   seed=1 verbose=false (per device metrics)
+public class SimulatedSoak {
+    private static final UUID SERVICE = GattAttributes.HRV_CONTROL_SERV_UUID;
+
+    private final ScheduledExecutorService mRadio = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final SimulatedTransport mTransport;
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    // Every acknowledgement of every device
+    private final LatencyHistogram mAckLatency = new LatencyHistogram();
+    private final ReconnectScheduler mReconnects;
+    private final List<Device> mDevices = new ArrayList<>();
+
+    private SimulatedSoak(long seed) {
+        mTransport = new SimulatedTransport(mRadio, seed);
+        mReconnects = new ReconnectScheduler(new ReconnectScheduler.Connector() {
+            @Override
+            public boolean reconnect(String address, boolean background) {
+                return deviceFor(address).open(background);
+            }
+
+            @Override
+            public boolean isKnown(String address) {
+                return deviceFor(address).mDiscovered;
+            }
+        }, mTimer);
+        // Faster than the app, a soak run should see many reconnects
+        mReconnects.setBackoff(100, 5000, 6);
+    }
+
+    private Device deviceFor(String address) {
+        return mDevices.get(Integer.parseInt(address.substring(address.length() - 5).replace(":", ""), 16));
+    }
+
+    // One controller as the app sees it
+    private final class Device implements GattTransport.Callback {
+        final String mAddress;
+        final DeviceMetrics mDeviceMetrics;
+        private final byte[] mCommand = new byte[ControlProtocol.COMMAND_LENGTH];
+        private GattTransport.Link mLink;
+        private GattOperationQueue mQueue;
+        private boolean mReady;
+        volatile boolean mDiscovered;
+        private long mConnectStarted;
+        // Across links, so a command whose link dropped still gets counted
+        private final AckTracker mAckTracker = new AckTracker(TimeUnit.SECONDS.toNanos(10));
+        private long mConnects;
+
+        Device(String address) {
+            mAddress = address;
+            mDeviceMetrics = mMetrics.forDevice(address);
+        }
+
+        synchronized boolean open(boolean background) {
+            if (mLink != null) {
+                mLink.close();
+                mQueue.clear();
+                abandonCommands();
+            }
+            mReady = false;
+            mConnectStarted = System.nanoTime();
+            mLink = mTransport.connect(mAddress, background, this);
+            mQueue = new GattOperationQueue(mLink, mTimer);
+            mQueue.setListener(new GattOperationQueue.Listener() {
+                @Override
+                public void onOperationFinished(GattOperationQueue.Operation operation, int status) {
+                    mDeviceMetrics.recordStatus(status);
+                    if (operation.getType() == GattOperationQueue.OP_WRITE_CHARACTERISTIC) {
+                        mAckTracker.onWriteFinished(operation, status == GattOperationQueue.STATUS_SUCCESS);
+                    }
+                }
+            });
+            return true;
+        }
+
+        synchronized void sendCommand(int unitId) {
+            if (!mReady) {
+                return;
+            }
+            long now = System.nanoTime();
+            expireCommands(now);
+            ControlProtocol.encodeTimerCommand(mCommand, 0, ControlProtocol.TIMER_TWENTY, unitId);
+            GattOperationQueue.Operation write = GattOperationQueue.writeCharacteristic(SERVICE,
+                    GattAttributes.HRV_CONTROL_CHAR_UUID, mCommand, GattClient.WRITE_TYPE_DEFAULT, true);
+            if (mQueue.enqueue(write)) {
+                mAckTracker.onSent(write, now);
+            }
+        }
+
+        void expireCommands(long now) {
+            mDeviceMetrics.recordMissingAcks(mAckTracker.expire(now));
+        }
+
+        private void abandonCommands() {
+            mDeviceMetrics.recordMissingAcks(mAckTracker.abandon());
+        }
+
+        private synchronized boolean isCurrent(GattTransport.Link link) {
+            return link == mLink;
+        }
+
+        @Override
+        public void onConnectionStateChange(GattTransport.Link link, int status, int newState) {
+            if (!isCurrent(link)) {
+                return;
+            }
+            if (status != GattTransport.GATT_SUCCESS || newState == GattTransport.STATE_DISCONNECTED) {
+                mDeviceMetrics.recordStatus(status);
+                synchronized (this) {
+                    mReady = false;
+                    mLink.close();
+                    mQueue.clear();
+                    abandonCommands();
+                }
+                mReconnects.onLinkLost(mAddress);
+                return;
+            }
+            synchronized (this) {
+                mConnects++;
+                mDeviceMetrics.getConnectTime().record((System.nanoTime() - mConnectStarted) / 1000);
+            }
+            mReconnects.onConnected(mAddress);
+            mQueue.enqueue(GattOperationQueue.requestMtu(517));
+            mQueue.enqueue(GattOperationQueue.discoverServices());
+            mQueue.enqueue(GattOperationQueue.setNotification(SERVICE, GattAttributes.CONTROL_ACKNOWLEDGE_UUID, true));
+        }
+
+        @Override
+        public void onServicesDiscovered(GattTransport.Link link, int status) {
+            if (isCurrent(link)) {
+                mDiscovered = true;
+                mQueue.onOperationComplete(GattOperationQueue.OP_DISCOVER_SERVICES, null, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(GattTransport.Link link, UUID characteristic, byte[] value, int status) {
+            if (isCurrent(link)) {
+                mQueue.onOperationComplete(GattOperationQueue.OP_READ_CHARACTERISTIC, characteristic, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattTransport.Link link, UUID characteristic, int status) {
+            if (isCurrent(link)) {
+                mQueue.onOperationComplete(GattOperationQueue.OP_WRITE_CHARACTERISTIC, characteristic, status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(GattTransport.Link link, UUID characteristic, int status) {
+            if (!isCurrent(link)) {
+                return;
+            }
+            synchronized (this) {
+                mReady = status == GattTransport.GATT_SUCCESS;
+            }
+            mQueue.onOperationComplete(GattOperationQueue.OP_SET_NOTIFICATION, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattTransport.Link link, UUID characteristic, byte[] value) {
+            long now = System.nanoTime();
+            mDeviceMetrics.recordNotification(now / 1000000);
+            if (!ControlProtocol.isAcceptedAcknowledgement(value)) {
+                return;
+            }
+            synchronized (this) {
+                expireCommands(now);
+                long latency = mAckTracker.onAcknowledged(now);
+                if (latency >= 0) {
+                    mDeviceMetrics.getWriteToAck().record(latency / 1000);
+                    mAckLatency.record(latency / 1000);
+                }
+            }
+        }
+
+        @Override
+        public void onMtuChanged(GattTransport.Link link, int mtu, int status) {
+            if (isCurrent(link)) {
+                mQueue.onOperationComplete(GattOperationQueue.OP_REQUEST_MTU, null, status);
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(GattTransport.Link link, int txPhy, int rxPhy, int status) {
+        }
+
+        @Override
+        public void onConnectionUpdated(GattTransport.Link link, int interval, int latency, int timeout, int status) {
+        }
+
+        @Override
+        public void onReadRemoteRssi(GattTransport.Link link, int rssi, int status) {
+            if (isCurrent(link)) {
+                mQueue.onOperationComplete(GattOperationQueue.OP_READ_RSSI, null, status);
+                mDeviceMetrics.recordRssi(System.nanoTime() / 1000000, rssi);
+            }
+        }
+    }
+
+    private void run(int devices, int seconds, int rate, int stormSeconds, boolean verbose, PrintStream out)
+            throws InterruptedException, IOException {
+        for (int i = 0; i < devices; i++) {
+            String address = String.format("02:00:00:00:%02X:%02X", i >> 8 & 0xFF, i & 0xFF);
+            mTransport.addController(new SimulatedHrvController(address));
+            mDevices.add(new Device(address));
+        }
+        for (Device device : mDevices) {
+            mReconnects.want(device.mAddress);
+            device.open(false);
+        }
+        long periodUs = 1000000L / Math.max(1, rate);
+        for (final Device device : mDevices) {
+            mTimer.scheduleAtFixedRate(new Runnable() {
+                private int mUnit;
+
+                @Override
+                public void run() {
+                    mUnit = mUnit % ControlProtocol.MAX_UNIT_ID + 1;
+                    device.sendCommand(mUnit);
+                }
+            }, periodUs, periodUs, TimeUnit.MICROSECONDS);
+        }
+        long startNs = System.nanoTime();
+        if (stormSeconds > 0) {
+            Thread.sleep(seconds * 500L);
+            out.println("Storm: every controller out of range for " + stormSeconds + " s");
+            for (Device device : mDevices) {
+                mTransport.setInRange(device.mAddress, false);
+            }
+            Thread.sleep(stormSeconds * 1000L);
+            for (Device device : mDevices) {
+                mTransport.setInRange(device.mAddress, true);
+            }
+        }
+        Thread.sleep(Math.max(0, seconds * 1000L - (System.nanoTime() - startNs) / 1000000));
+        mTimer.shutdownNow();
+        mRadio.shutdownNow();
+
+        long sent = 0;
+        long acks = 0;
+        long connects = 0;
+        long missing = 0;
+        long coalesced = 0;
+        long failed = 0;
+        long outstanding = 0;
+        long endNs = System.nanoTime();
+        for (Device device : mDevices) {
+            synchronized (device) {
+                device.expireCommands(endNs);
+                AckTracker tracker = device.mAckTracker;
+                sent += tracker.getSentCount();
+                acks += tracker.getAcknowledgedCount();
+                coalesced += tracker.getCoalescedCount();
+                failed += tracker.getFailedCount();
+                outstanding += tracker.getOutstandingCount();
+                connects += device.mConnects;
+            }
+            missing += device.mDeviceMetrics.getMissingAckCount();
+        }
+        if (verbose) {
+            mMetrics.writeTo(out, System.nanoTime() / 1000000);
+        }
+        double elapsed = seconds;
+        out.printf("devices %d, %d s: commands %d (%.0f/s), acks %d, missing acks %d%n",
+                devices, seconds, sent, sent / elapsed, acks, missing);
+        out.printf("coalesced %d, failed writes %d, still waiting %d%n", coalesced, failed, outstanding);
+        out.printf("connects %d, failed connects %d, injected 133 drops %d, lost packets %d%n",
+                connects, mTransport.getFailedConnects(), mTransport.getInjectedDisconnects(),
+                mTransport.getLostPackets());
+        out.printf("write-to-ack (us): min %d p50 %d p90 %d p99 %d max %d%n",
+                mAckLatency.getMin(), mAckLatency.getValueAtPercentile(50),
+                mAckLatency.getValueAtPercentile(90), mAckLatency.getValueAtPercentile(99),
+                mAckLatency.getMax());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int devices = 20;
+        int seconds = 60;
+        int rate = 5;
+        long minLatency = 5;
+        long maxLatency = 30;
+        double loss = 0.01;
+        double disconnect = 0.001;
+        double connectFailure = 0.05;
+        int storm = 3;
+        long seed = 1;
+        boolean verbose = false;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            String name = split < 0 ? arg : arg.substring(0, split);
+            String value = split < 0 ? "" : arg.substring(split + 1);
+            switch (name) {
+                case "devices":
+                    devices = Integer.parseInt(value);
+                    break;
+                case "seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    rate = Integer.parseInt(value);
+                    break;
+                case "latency":
+                    String[] range = value.split("-");
+                    minLatency = Long.parseLong(range[0]);
+                    maxLatency = Long.parseLong(range[range.length - 1]);
+                    break;
+                case "loss":
+                    loss = Double.parseDouble(value);
+                    break;
+                case "disconnect":
+                    disconnect = Double.parseDouble(value);
+                    break;
+                case "connectFailure":
+                    connectFailure = Double.parseDouble(value);
+                    break;
+                case "storm":
+                    storm = Integer.parseInt(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "verbose":
+                    verbose = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        SimulatedSoak soak = new SimulatedSoak(seed);
+        soak.mTransport.setLatency(minLatency, maxLatency);
+        soak.mTransport.setLossRate(loss);
+        soak.mTransport.setDisconnectRate(disconnect);
+        soak.mTransport.setConnectFailureRate(connectFailure);
+        // Short enough that a failed direct attempt does not stall a short run
+        soak.mTransport.setConnectTimeout(2000);
+        soak.run(devices, seconds, rate, storm, verbose, System.out);
+    }
+}
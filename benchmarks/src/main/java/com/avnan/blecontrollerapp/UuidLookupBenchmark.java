@@ -0,0 +1,81 @@
+package com.avnan.blecontrollerapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Resolving discovered attributes against GattAttributes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UuidLookupBenchmark {
+    // What discovery on a controller typically returns: GAP, GATT, device information and the
+    // HRV control service with its characteristics
+    private final UUID[] mDiscovered = {
+            UUID.fromString("00001800-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002a01-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00001801-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb"),
+            GattAttributes.DEVICE_INFORMATION_SERV_UUID,
+            GattAttributes.FIRMWARE_REVISION_UUID,
+            GattAttributes.HRV_CONTROL_SERV_UUID,
+            GattAttributes.HRV_CONTROL_CHAR_UUID,
+            GattAttributes.CONTROL_ACKNOWLEDGE_UUID,
+            GattAttributes.TIMER_VAL_UUID,
+    };
+
+    @Benchmark
+    public int idOfKnown() {
+        return GattAttributes.idOf(GattAttributes.CONTROL_ACKNOWLEDGE_UUID);
+    }
+
+    @Benchmark
+    public String lookupName() {
+        return GattAttributes.lookup(GattAttributes.HRV_CONTROL_CHAR_UUID, null);
+    }
+
+    // One pass over a discovered database, as HrvProfile.resolve does
+    @Benchmark
+    public int resolveProfile() {
+        int found = 0;
+        for (UUID uuid : mDiscovered) {
+            switch (GattAttributes.idOf(uuid)) {
+                case GattAttributes.ID_HRV_CONTROL_SERVICE:
+                case GattAttributes.ID_HRV_CONTROL_CHARACTERISTIC:
+                case GattAttributes.ID_CONTROL_ACKNOWLEDGE:
+                    found++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return found;
+    }
+
+    // What getGattProfile did before the registry: parse the String constants on every comparison
+    @Benchmark
+    public int legacyParseAndCompare() {
+        int found = 0;
+        for (UUID uuid : mDiscovered) {
+            if (uuid.equals(UUID.fromString("4fafc201-1fb5-459e-8fcc-c5c9c331914b"))
+                    || uuid.equals(UUID.fromString("beb5483e-36e1-4688-b7f5-ea07361b26a8"))
+                    || uuid.equals(UUID.fromString("beb5483e-36e1-4688-b7f5-ea07361b26a9"))) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,144 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Matches the controller's acknowledgements to the commands they answer
+// The controller acknowledges every command it receives, in order, without saying which one, so
+// commands are kept in the order they were sent and an acknowledgement answers the oldest one
+// still waiting. A command that waits longer than the timeout is counted as missing its
+// acknowledgement, as is every written command still waiting when its link goes away. A command
+// whose write failed never reached the controller and is counted as failed instead. A command
+// the queue coalesced into a write that had not gone out yet is counted as coalesced; the write
+// it replaced is timed from then on, since that is when its value was sent.
+// Every command ends up in exactly one count:
+//   sent = acknowledged + missing + coalesced + failed + outstanding
+// Thread safe. Android-free; times are in nanoseconds on any monotonic clock.
+public class AckTracker {
+    private static final class Command {
+        final GattOperationQueue.Operation mWrite;
+        long mSent;
+        boolean mWritten;
+
+        Command(GattOperationQueue.Operation write, long sent) {
+            mWrite = write;
+            mSent = sent;
+        }
+    }
+
+    private final long mTimeout;
+    // Oldest first
+    private final ArrayDeque<Command> mOutstanding = new ArrayDeque<>();
+    private long mSentCount;
+    private long mAcknowledged;
+    private long mMissing;
+    private long mCoalesced;
+    private long mFailed;
+
+    public AckTracker(long timeoutNanos) {
+        mTimeout = timeoutNanos;
+    }
+
+    // write was accepted by GattOperationQueue.enqueue()
+    public synchronized void onSent(GattOperationQueue.Operation write, long now) {
+        mSentCount++;
+        GattOperationQueue.Operation into = write.getCoalescedInto();
+        if (into != null) {
+            Command command = find(into);
+            if (command != null) {
+                mCoalesced++;
+                command.mSent = now;
+                return;
+            }
+            // The write it went into is not one of ours; track it in its place
+            write = into;
+        }
+        mOutstanding.addLast(new Command(write, now));
+    }
+
+    // Forwarded from the queue's Listener; operations that are not tracked commands are ignored
+    public synchronized void onWriteFinished(GattOperationQueue.Operation write, boolean success) {
+        Command command = find(write);
+        if (command == null) {
+            // Already answered, the acknowledgement beat the write callback
+            return;
+        }
+        if (success) {
+            command.mWritten = true;
+        } else {
+            mOutstanding.remove(command);
+            mFailed++;
+        }
+    }
+
+    // Returns the time from the command it answers to now, or -1 if no command was waiting
+    public synchronized long onAcknowledged(long now) {
+        Command command = mOutstanding.pollFirst();
+        if (command == null) {
+            return -1;
+        }
+        mAcknowledged++;
+        return now - command.mSent;
+    }
+
+    // Counts the commands that have waited longer than the timeout as missing. Returns how many.
+    public synchronized int expire(long now) {
+        int expired = 0;
+        while (!mOutstanding.isEmpty() && now - mOutstanding.peekFirst().mSent > mTimeout) {
+            mOutstanding.pollFirst();
+            expired++;
+        }
+        mMissing += expired;
+        return expired;
+    }
+
+    // The link is gone and nothing sent over it will be acknowledged. Returns how many commands
+    // were counted as missing.
+    public synchronized int abandon() {
+        int missing = 0;
+        for (Command command : mOutstanding) {
+            if (command.mWritten) {
+                missing++;
+            } else {
+                mFailed++;
+            }
+        }
+        mOutstanding.clear();
+        mMissing += missing;
+        return missing;
+    }
+
+    private Command find(GattOperationQueue.Operation write) {
+        for (Iterator<Command> it = mOutstanding.descendingIterator(); it.hasNext(); ) {
+            Command command = it.next();
+            if (command.mWrite == write) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    public synchronized long getAcknowledgedCount() {
+        return mAcknowledged;
+    }
+
+    public synchronized long getMissingCount() {
+        return mMissing;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return mOutstanding.size();
+    }
+}
@@ -0,0 +1,112 @@
+package com.avnan.blecontrollerapp;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+
+import java.util.List;
+import java.util.UUID;
+
+// GattClient backed by a real BluetoothGatt
+public class AndroidGattClient implements GattClient {
+    // Client Characteristic Configuration descriptor, written to turn notifications on or off
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothGatt mGatt;
+
+    public AndroidGattClient(BluetoothGatt gatt) {
+        mGatt = gatt;
+    }
+
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic target = findCharacteristic(service, characteristic);
+        return target != null && mGatt.readCharacteristic(target);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType) {
+        BluetoothGattCharacteristic target = findCharacteristic(service, characteristic);
+        if (target == null) {
+            return false;
+        }
+        target.setWriteType(writeType);
+        target.setValue(value);
+        return mGatt.writeCharacteristic(target);
+    }
+
+    @Override
+    public int setCharacteristicNotification(UUID service, UUID characteristic, boolean enable) {
+        BluetoothGattCharacteristic target = findCharacteristic(service, characteristic);
+        if (target == null || !mGatt.setCharacteristicNotification(target, enable)) {
+            return NOTIFICATION_FAILED;
+        }
+        BluetoothGattDescriptor config = target.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (config == null) {
+            // The peripheral notifies unconditionally, nothing else to do
+            return NOTIFICATION_SET;
+        }
+        config.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return mGatt.writeDescriptor(config) ? NOTIFICATION_PENDING : NOTIFICATION_FAILED;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return mGatt.readRemoteRssi();
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return mGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean setPreferredPhy(int phyMask) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+        mGatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
+    // Captures the discovered database for the GattProfileCache
+    public static GattLayout layoutOf(List<BluetoothGattService> services) {
+        GattLayout.Builder layout = new GattLayout.Builder();
+        for (BluetoothGattService service : services) {
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            if (characteristics.isEmpty()) {
+                layout.addEmptyService(service.getUuid(), service.getInstanceId());
+            }
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                layout.addCharacteristic(service.getUuid(), service.getInstanceId(),
+                        characteristic.getUuid(), characteristic.getInstanceId(),
+                        characteristic.getProperties());
+            }
+        }
+        return layout.build();
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattService gattService = mGatt.getService(service);
+        return gattService == null ? null : gattService.getCharacteristic(characteristic);
+    }
+}
@@ -0,0 +1,192 @@
+package com.avnan.blecontrollerapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.List;
+import java.util.UUID;
+
+// GattTransport over the real Bluetooth stack, one BluetoothGatt per link
+public class AndroidGattTransport implements GattTransport {
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+
+    public AndroidGattTransport(Context context, BluetoothAdapter adapter) {
+        mContext = context;
+        mAdapter = adapter;
+    }
+
+    @Override
+    public Link connect(String address, boolean background, Callback callback) {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            return null;
+        }
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        AndroidLink link = new AndroidLink(address);
+        BluetoothGatt gatt = device.connectGatt(mContext, background, new LinkCallback(link, callback));
+        if (gatt == null) {
+            return null;
+        }
+        link.attach(gatt);
+        return link;
+    }
+
+    // The framework objects stay reachable for the screens that still work with them
+    public static class AndroidLink implements Link {
+        private final String mAddress;
+        private volatile BluetoothGatt mGatt;
+        private volatile AndroidGattClient mClient;
+
+        AndroidLink(String address) {
+            mAddress = address;
+        }
+
+        void attach(BluetoothGatt gatt) {
+            mGatt = gatt;
+            mClient = new AndroidGattClient(gatt);
+        }
+
+        public BluetoothGatt getGatt() {
+            return mGatt;
+        }
+
+        public List<BluetoothGattService> getServices() {
+            return mGatt.getServices();
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public GattLayout getLayout() {
+            List<BluetoothGattService> services = mGatt.getServices();
+            return services.isEmpty() ? null : AndroidGattClient.layoutOf(services);
+        }
+
+        @Override
+        public void disconnect() {
+            mGatt.disconnect();
+        }
+
+        // BluetoothGatt.connect(), which reconnects with autoConnect and keeps getServices()
+        @Override
+        public boolean reconnect() {
+            return mGatt.connect();
+        }
+
+        @Override
+        public void close() {
+            mGatt.close();
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return mClient.discoverServices();
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID service, UUID characteristic) {
+            return mClient.readCharacteristic(service, characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType) {
+            return mClient.writeCharacteristic(service, characteristic, value, writeType);
+        }
+
+        @Override
+        public int setCharacteristicNotification(UUID service, UUID characteristic, boolean enable) {
+            return mClient.setCharacteristicNotification(service, characteristic, enable);
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            return mClient.readRemoteRssi();
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return mClient.requestMtu(mtu);
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return mClient.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public boolean setPreferredPhy(int phyMask) {
+            return mClient.setPreferredPhy(phyMask);
+        }
+    }
+
+    // Turns the framework callbacks of one BluetoothGatt into transport callbacks
+    private static class LinkCallback extends BluetoothGattCallback {
+        private final AndroidLink mLink;
+        private final Callback mCallback;
+
+        LinkCallback(AndroidLink link, Callback callback) {
+            mLink = link;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            mCallback.onConnectionStateChange(mLink, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mCallback.onServicesDiscovered(mLink, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mCallback.onCharacteristicRead(mLink, characteristic.getUuid(), characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mCallback.onCharacteristicWrite(mLink, characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mCallback.onDescriptorWrite(mLink, descriptor.getCharacteristic().getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            mCallback.onCharacteristicChanged(mLink, characteristic.getUuid(), characteristic.getValue());
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mCallback.onMtuChanged(mLink, mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mCallback.onPhyUpdate(mLink, txPhy, rxPhy, status);
+        }
+
+        // Hidden in BluetoothGattCallback but called by the framework on every connection
+        // parameter update; the only place the negotiated interval is reported
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            mCallback.onConnectionUpdated(mLink, interval, latency, timeout, status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mCallback.onReadRemoteRssi(mLink, rssi, status);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.avnan.blecontrollerapp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Logging for the Bluetooth paths
+// Debug output only exists in debug builds. DEBUG is a compile time constant false in release
+// builds, so a call site wrapped in if (BleLog.DEBUG) is dropped by the compiler together with
+// the string it builds; proguard-rules.pro lets R8 remove the remaining calls to d(). Inside,
+// the message is only put together after the level check, so a line that is filtered out costs
+// no formatting: pass the parts as arguments rather than concatenating them at the call site.
+// Per-packet paths go through a LogSampler so a busy link cannot flood logcat.
+// Warnings and errors are always logged.
+public final class BleLog {
+    public static final boolean DEBUG = BuildConfig.DEBUG;
+
+    // Lowest level logged, e.g. Log.INFO to quiet a soak run in a debug build
+    private static volatile int sLevel = Log.VERBOSE;
+
+    private BleLog() {
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static boolean isDebugEnabled() {
+        return DEBUG && sLevel <= Log.DEBUG;
+    }
+
+    public static void d(String tag, String message) {
+        if (isDebugEnabled()) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String message, Object arg) {
+        if (isDebugEnabled()) {
+            Log.d(tag, message + arg);
+        }
+    }
+
+    public static void d(String tag, String message, long arg) {
+        if (isDebugEnabled()) {
+            Log.d(tag, message + arg);
+        }
+    }
+
+    // message, arg1, separator, arg2 in that order
+    public static void d(String tag, String message, Object arg1, String separator, Object arg2) {
+        if (isDebugEnabled()) {
+            Log.d(tag, message + arg1 + separator + arg2);
+        }
+    }
+
+    // Logs only what sampler lets through; the next line that does get through carries the count
+    // of those left out
+    public static void d(String tag, LogSampler sampler, String message, Object arg) {
+        if (!isDebugEnabled() || !sampler.sample(SystemClock.uptimeMillis())) {
+            return;
+        }
+        int suppressed = sampler.takeSuppressed();
+        if (suppressed == 0) {
+            Log.d(tag, message + arg);
+        } else {
+            Log.d(tag, message + arg + " (" + suppressed + " more not logged)");
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (sLevel <= Log.INFO) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        Log.w(tag, message);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        Log.w(tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        Log.e(tag, message);
+    }
+}
@@ -1,27 +1,52 @@
 package com.avnan.blecontrollerapp;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.util.Log;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.widget.Toast;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.core.app.NotificationCompat;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Owns every GATT link for as long as the user wants it, independently of the screens that use it
+// Screens bind to the service and attach to their device; the service is also started, so links
+// stay warm after the screen goes away. While it holds any link it runs in the foreground with a
+// notification, so the system does not stop it in the background. IdleLinkPolicy releases links
+// nobody has used for a while, and the service stops itself once it holds none.
 public class BluetoothLeService extends Service {
     private static final String LOG_TAG = BluetoothLeService.class.getSimpleName();
     // Things that could belong within a Service
@@ -34,80 +59,553 @@ public class BluetoothLeService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothDevice mBluetoothDevice;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
+    // Opens the links; the Bluetooth stack unless replaced with setTransport()
+    private GattTransport mTransport;
+    // One GATT link per device address, each with its own state machine and operation queue
+    private final ConnectionPool<GattConnection> mConnections = new ConnectionPool<>();
+    // Held from opening a link until it is in mConnections, so its first callback can wait for it
+    private final Object mOpenLock = new Object();
+    // Drives the operation timeouts of every connection, and does the profile cache file I/O
+    private final ScheduledExecutorService mGattTimer = Executors.newSingleThreadScheduledExecutor();
+    // GATT layouts of known peripherals, persisted across app restarts
+    private final GattProfileCache mProfileCache = new GattProfileCache();
+    private static final String PROFILE_CACHE_FILE = "gatt_profile_cache.bin";
+    // Asked for on every link so streamed commands can be packed several to a packet; the
+    // largest the ESP32 stack accepts
+    private static final int REQUESTED_MTU = 517;
+    private static final long RSSI_POLL_INTERVAL_MS = 10000;
+    // Connect, discovery and command round-trip times, GATT errors, RSSI and notification rates
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    // Each controller's fan timer, kept across links and screens
+    private final ConcurrentHashMap<String, FanCountdown> mCountdowns = new ConcurrentHashMap<>();
+    // A running countdown is checked against the controller at least this often, in case a
+    // notification went missing
+    private static final long TIMER_RESYNC_INTERVAL_MS = 60000;
+    // Brings back links that drop while the user still wants them
+    private final ReconnectScheduler mReconnects = new ReconnectScheduler(
+            new ReconnectScheduler.Connector() {
+                @Override
+                public boolean reconnect(String address, boolean background) {
+                    BleLog.d(LOG_TAG, "Reconnecting to ", address, "", background ? " in the background" : "");
+                    return openConnection(address, background);
+                }
 
-    private int mConnectionState = STATE_DISCONNECTED;
+                @Override
+                public boolean isKnown(String address) {
+                    return mProfileCache.get(address) != null;
+                }
+            }, mGattTimer);
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Releases warm links once no screen has used them for a while
+    private final IdleLinkPolicy mIdlePolicy = new IdleLinkPolicy();
+    private static final long IDLE_CHECK_INTERVAL_MS = 30000;
+    private static final int SESSION_NOTIFICATION_ID = 1;
+    private static final String SESSION_CHANNEL_ID = "controller_links";
+    // Foreground state changes on the main thread only
+    private Handler mMainHandler;
+    private boolean mForeground;
 
-    public static final String ACTION_GATT_CONNECTED =
-            BuildConfig.APPLICATION_ID + ".ACTION_GATT_CONNECTED";
-    public static final String ACTION_GATT_DISCONNECTED =
-            BuildConfig.APPLICATION_ID + ".ACTION_GATT_DISCONNECTED";
-    public static final String ACTION_GATT_SERVICES_DISCOVERED =
-            BuildConfig.APPLICATION_ID + ".ACTION_GATT_SERVICES_DISCOVERED";
-    public static final String ACTION_DATA_AVAILABLE =
-            BuildConfig.APPLICATION_ID + ".ACTION_DATA_AVAILABLE";
+    // Connection state, notifications and operation results go out to listeners through here
+    private final GattEventBus mEvents = new GattEventBus();
 
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // What was observed of every controller, kept across sessions
+    private EventJournal mJournal;
+    private static final String JOURNAL_DIR = "journal";
+    private static final long JOURNAL_FLUSH_INTERVAL_MS = 5000;
+    // Notifications are copied into this ring on the Binder thread and turned into events on
+    // mNotificationThread, so a slow listener never holds up the next GATT callback
+    private final NotificationRing mNotifications = new NotificationRing();
+    private HandlerThread mNotificationThread;
+    private Handler mNotificationHandler;
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+
+    private final GattTransport.Callback mGattCallback = new GattTransport.Callback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(GattTransport.Link link, int status, int newState) {
             // Callback indicating when a GATT client has connected/disconnected from a GATT server
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                boolean rssiStatus = mBluetoothGatt.readRemoteRssi();
-                broadcastUpdate(intentAction);
-                // Attempt to discover the services after a successful connection
-                mBluetoothGatt.discoverServices();
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                broadcastUpdate(intentAction);
-            } else if ((status == 8 && newState == 0) || (status == 133 && newState == 0)) {
-                gatt.disconnect();
-                gatt.close();
-            }
-        }
-
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(LOG_TAG, "Service discovery successful");
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+            GattConnection connection = connectionFor(link);
+            if (connection == null) {
+                // A link we already replaced or closed
+                return;
+            }
+            String address = connection.getAddress();
+            mJournal.append(EventJournal.TYPE_CONNECTION, System.currentTimeMillis(), address, status, newState, 0);
+            if (status != GattTransport.GATT_SUCCESS || newState == GattTransport.STATE_DISCONNECTED) {
+                // Link lost or connection attempt failed, e.g. 8 (supervision timeout) or 133
+                // (generic error) when the unit is at the edge of range
+                onLinkDown(connection, status);
+            } else if (newState == GattTransport.STATE_CONNECTED) {
+                if (!connection.moveTo(GattConnection.State.DISCOVERING)) {
+                    // Came up while being torn down; the disconnect already asked for finishes it
+                    BleLog.d(LOG_TAG, "Ignoring connect of ", address, " in state ", connection.getState());
+                    return;
+                }
+                if (BleLog.DEBUG) {
+                    BleLog.d(LOG_TAG, "Connected to " + address + " in " + connection.getConnectLatency() + " ms");
+                }
+                if (!connection.isBackground()) {
+                    // autoConnect links wait for the device to come into range, which says
+                    // nothing about how fast a connection comes up
+                    mMetrics.forDevice(address).getConnectTime().record(connection.getConnectLatency() * 1000);
+                }
+                mReconnects.onConnected(address);
+                // Setting up the link is interactive work as far as the link profile goes
+                connection.getLinkSelector().onInteraction(SystemClock.elapsedRealtime());
+                updateLinkProfile(connection);
+                postEvent(GattEvent.connected(address));
+                updateSession();
+                // Attempt to discover the services after a successful connection, unless the
+                // link already holds exactly the layout we have cached for this peripheral
+                // The queue runs these one after the other instead of letting the RSSI read
+                // collide with discovery
+                enqueue(connection, GattOperationQueue.requestMtu(REQUESTED_MTU));
+                if (!resolveFromCache(connection)) {
+                    connection.markDiscoveryStarted();
+                    enqueue(connection, GattOperationQueue.discoverServices());
+                }
+                enqueue(connection, GattOperationQueue.readRemoteRssi());
+                startRssiPoll(connection);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(GattTransport.Link link, int status) {
+            GattConnection connection = connectionFor(link);
+            if (connection == null) {
+                return;
+            }
+            connection.getQueue().onOperationComplete(GattOperationQueue.OP_DISCOVER_SERVICES, null, status);
+            if (status == GattTransport.GATT_SUCCESS) {
+                BleLog.d(LOG_TAG, "Service discovery successful");
+                long discoveryTime = connection.takeDiscoveryTime();
+                if (discoveryTime >= 0) {
+                    mMetrics.forDevice(connection.getAddress()).getDiscoveryTime().record(discoveryTime);
+                }
+                GattLayout layout = link.getLayout();
+                if (layout == null) {
+                    // Nothing but an empty database
+                    layout = new GattLayout.Builder().build();
+                }
+                if (mProfileCache.put(connection.getAddress(), layout)) {
+                    saveProfileCache();
+                }
+                connection.moveTo(GattConnection.State.READY);
+                postEvent(GattEvent.servicesDiscovered(connection.getAddress(), status));
+                readFirmwareRevision(connection, layout);
+                subscribeToTimer(connection, layout);
             } else {
-                Log.w(LOG_TAG, "onServicesDiscovered received: " + status);
+                BleLog.w(LOG_TAG, "onServicesDiscovered received: " + status);
+                postEvent(GattEvent.servicesDiscovered(connection.getAddress(), status));
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        public void onCharacteristicRead(GattTransport.Link link, UUID characteristic, byte[] value, int status) {
+            onOperationComplete(link, GattOperationQueue.OP_READ_CHARACTERISTIC, characteristic, status);
+            if (status == GattTransport.GATT_SUCCESS && GattAttributes.TIMER_VAL_UUID.equals(characteristic)
+                    && value != null) {
+                onTimerValue(link.getAddress(), value, value.length, SystemClock.elapsedRealtime());
+            }
+            postEvent(GattEvent.characteristicRead(link.getAddress(), characteristic, value, status));
+            if (status == GattTransport.GATT_SUCCESS && value != null
+                    && GattAttributes.FIRMWARE_REVISION_UUID.equals(characteristic)) {
+                GattConnection connection = connectionFor(link);
+                if (connection != null) {
+                    onFirmwareRevision(connection, new String(value, StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattTransport.Link link, UUID characteristic, int status) {
+            onOperationComplete(link, GattOperationQueue.OP_WRITE_CHARACTERISTIC, characteristic, status);
+            postEvent(GattEvent.characteristicWrite(link.getAddress(), characteristic, status));
+        }
+
+        @Override
+        public void onDescriptorWrite(GattTransport.Link link, UUID characteristic, int status) {
+            onOperationComplete(link, GattOperationQueue.OP_SET_NOTIFICATION, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattTransport.Link link, UUID characteristic, byte[] value) {
             // Callback triggered as a result of a remote characteristic notification
-            Log.d(LOG_TAG, "Triggered as a result of a remote notification");
-            String receivedValue = new String(characteristic.getValue());
-            Log.d(LOG_TAG, receivedValue);
-            if (receivedValue.equals("rt2,1\r\n")) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE);
+            // Only copy the bytes out here, the value is overwritten by the next one
+            if (mNotifications.offer(link.getAddress(), characteristic, value,
+                    SystemClock.elapsedRealtimeNanos())) {
+                scheduleNotificationDrain();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(GattTransport.Link link, int mtu, int status) {
+            onOperationComplete(link, GattOperationQueue.OP_REQUEST_MTU, null, status);
+            GattConnection connection = connectionFor(link);
+            if (connection != null && status == GattTransport.GATT_SUCCESS) {
+                BleLog.d(LOG_TAG, "MTU for ", connection.getAddress(), " is ", mtu);
+                connection.setMtu(mtu);
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(GattTransport.Link link, int txPhy, int rxPhy, int status) {
+            GattConnection connection = connectionFor(link);
+            if (connection == null) {
+                return;
+            }
+            if (status == GattTransport.GATT_SUCCESS) {
+                connection.onPhyUpdated(txPhy, rxPhy);
+                BleLog.d(LOG_TAG, "Link to ", connection.getAddress(), ": ", connection.getLinkParameters());
+            }
+            postEvent(GattEvent.linkUpdated(connection.getAddress(), status));
+        }
+
+        @Override
+        public void onConnectionUpdated(GattTransport.Link link, int interval, int latency, int timeout, int status) {
+            GattConnection connection = connectionFor(link);
+            if (connection == null) {
+                return;
+            }
+            if (status == GattTransport.GATT_SUCCESS) {
+                connection.onConnectionUpdated(interval, latency, timeout);
+                BleLog.d(LOG_TAG, "Link to ", connection.getAddress(), ": ", connection.getLinkParameters());
+            }
+            postEvent(GattEvent.linkUpdated(connection.getAddress(), status));
+        }
+
+        @Override
+        public void onReadRemoteRssi(GattTransport.Link link, int rssi, int status) {
+            onOperationComplete(link, GattOperationQueue.OP_READ_RSSI, null, status);
+            mJournal.append(EventJournal.TYPE_RSSI, System.currentTimeMillis(), link.getAddress(), status, rssi, 0);
+            if (status == GattTransport.GATT_SUCCESS) {
+                BleLog.d(LOG_TAG, mRssiLogSampler, "BluetoothGatt ReadRssi ", rssi);
+                mMetrics.forDevice(link.getAddress()).recordRssi(SystemClock.elapsedRealtime(), rssi);
             }
+            postEvent(GattEvent.rssiRead(link.getAddress(), rssi, status));
         }
+    };
 
+    private void onLinkDown(GattConnection connection, int status) {
+        String address = connection.getAddress();
+        if (connection.getState() == GattConnection.State.DISCONNECTING) {
+            // We asked for this; the owner closes the link when it is done with it
+            connection.moveTo(GattConnection.State.DISCONNECTED);
+            connection.getQueue().clear();
+            postEvent(GattEvent.disconnected(address, status));
+            updateSession();
+            return;
+        }
+        BleLog.d(LOG_TAG, "Lost ", address, ", status ", status);
+        mMetrics.forDevice(address).recordStatus(status);
+        // This link is finished with. Close it now, or the stack keeps its client interface
+        // registered and runs out of them after a few dozen drops. The exception is a known
+        // controller whose link still holds the cached layout: it stays in the pool, idle, so
+        // openConnection can bring it back without discovery. The pool bounds how many are kept
+        // and evicts them like any other idle link.
+        if (canReopen(connection)) {
+            stopConnection(connection);
+        } else if (mConnections.remove(address, connection)) {
+            closeConnection(connection);
+        }
+        postEvent(GattEvent.disconnected(address, status));
+        long delay = mReconnects.onLinkLost(address);
+        if (BleLog.DEBUG && delay >= 0) {
+            BleLog.d(LOG_TAG, "Reconnecting to " + address + " in " + delay + " ms");
+        }
+        updateSession();
+    }
+
+    private final NotificationRing.Consumer mNotificationConsumer = new NotificationRing.Consumer() {
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(LOG_TAG, String.format("BluetoothGatt ReadRssi[%d]", rssi));
+        public void onNotification(String address, UUID characteristic, byte[] value, int length,
+                                   long timestampNanos) {
+            DeviceMetrics metrics = mMetrics.forDevice(address);
+            long now = timestampNanos / 1000000;
+            metrics.recordNotification(now);
+            if (GattAttributes.CONTROL_ACKNOWLEDGE_UUID.equals(characteristic)) {
+                int ack = ControlProtocol.decodeAcknowledgement(value, 0, length);
+                if (ack != ControlProtocol.NOT_AN_ACK) {
+                    GattConnection connection = mConnections.peek(address);
+                    long latency = -1;
+                    if (connection != null) {
+                        AckTracker acks = connection.getAckTracker();
+                        metrics.recordMissingAcks(acks.expire(timestampNanos));
+                        long nanos = acks.onAcknowledged(timestampNanos);
+                        latency = nanos < 0 ? -1 : nanos / 1000;
+                    }
+                    if (latency >= 0) {
+                        metrics.getWriteToAck().record(latency);
+                    }
+                    mJournal.append(EventJournal.TYPE_ACK, System.currentTimeMillis(), address, 0, ack,
+                            (int) Math.min(latency, Integer.MAX_VALUE));
+                    if (ack == ControlProtocol.ACK_ACCEPTED) {
+                        getCountdown(address).onCommandAccepted(now);
+                        // The controller's own value replaces our estimate
+                        if (connection != null && connection.getState() == GattConnection.State.READY) {
+                            readTimer(connection);
+                        }
+                    }
+                }
+            } else if (GattAttributes.TIMER_VAL_UUID.equals(characteristic)) {
+                onTimerValue(address, value, length, now);
             }
+            postEvent(GattEvent.dataAvailable(address, characteristic, value, length, timestampNanos));
+        }
+    };
+
+    private final Runnable mDrainNotifications = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so a notification that arrives during the drain schedules another one
+            mDrainPending.set(false);
+            mNotifications.drain(mNotificationConsumer);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        Log.d(LOG_TAG, "Broadcasting " + action);
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    // One drain is posted for any number of notifications that arrive before it runs
+    private void scheduleNotificationDrain() {
+        if (mDrainPending.compareAndSet(false, true)) {
+            mNotificationHandler.post(mDrainNotifications);
+        }
+    }
+
+    // Moves a link to the profile its selector wants, and comes back when that will change
+    private void updateLinkProfile(final GattConnection connection) {
+        if (!connection.getState().isConnected()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        LinkProfileSelector selector = connection.getLinkSelector();
+        LinkProfile profile = selector.select(now);
+        if (connection.applyLinkProfile(profile)) {
+            BleLog.d(LOG_TAG, "Link profile for ", connection.getAddress(), " is now ", profile);
+        }
+        long delay = selector.untilNextChange(now);
+        if (delay < 0) {
+            connection.setLinkCheck(null);
+            return;
+        }
+        connection.setLinkCheck(mGattTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                updateLinkProfile(connection);
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    // Samples the signal for the RSSI history while the link is up, and keeps a running countdown
+    // in step with the controller
+    private void startRssiPoll(final GattConnection connection) {
+        connection.setRssiPoll(mGattTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (connection.getState().isConnected()) {
+                    enqueue(connection, GattOperationQueue.readRemoteRssi());
+                }
+                // Acknowledgements that never came are counted even if no more commands are sent
+                mMetrics.forDevice(connection.getAddress()).recordMissingAcks(
+                        connection.getAckTracker().expire(SystemClock.elapsedRealtimeNanos()));
+                long now = SystemClock.elapsedRealtime();
+                FanCountdown countdown = getCountdown(connection.getAddress());
+                if (connection.getState() == GattConnection.State.READY && countdown.isRunning(now)
+                        && now - countdown.getLastReport() >= TIMER_RESYNC_INTERVAL_MS) {
+                    readTimer(connection);
+                }
+            }
+        }, RSSI_POLL_INTERVAL_MS, RSSI_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void noteInteraction(GattConnection connection) {
+        connection.touch();
+        mIdlePolicy.onUsed(connection.getAddress(), SystemClock.elapsedRealtime());
+        connection.getLinkSelector().onInteraction(SystemClock.elapsedRealtime());
+        updateLinkProfile(connection);
+    }
+
+    // Skips discovery when the link still holds the services from an earlier session (brought
+    // back by reopen()) and they match the cached layout
+    private boolean resolveFromCache(GattConnection connection) {
+        GattLayout cached = mProfileCache.get(connection.getAddress());
+        if (cached == null || !cached.equals(connection.getLink().getLayout())) {
+            return false;
+        }
+        BleLog.d(LOG_TAG, "Using cached GATT layout for ", connection.getAddress());
+        connection.moveTo(GattConnection.State.READY);
+        postEvent(GattEvent.servicesDiscovered(connection.getAddress(), GattTransport.GATT_SUCCESS));
+        // Still confirm the firmware has not changed underneath the cache
+        readFirmwareRevision(connection, cached);
+        subscribeToTimer(connection, cached);
+        return true;
+    }
+
+    private void readFirmwareRevision(GattConnection connection, GattLayout layout) {
+        if (layout.findCharacteristic(GattAttributes.DEVICE_INFORMATION_SERV_UUID,
+                GattAttributes.FIRMWARE_REVISION_UUID) >= 0) {
+            enqueue(connection, GattOperationQueue.readCharacteristic(
+                    GattAttributes.DEVICE_INFORMATION_SERV_UUID, GattAttributes.FIRMWARE_REVISION_UUID));
+        }
+    }
+
+    // Follows the controller's fan timer: notifications if it sends them, and a read now to sync
+    private void subscribeToTimer(GattConnection connection, GattLayout layout) {
+        int row = layout.findCharacteristic(GattAttributes.HRV_CONTROL_SERV_UUID, GattAttributes.TIMER_VAL_UUID);
+        if (row < 0) {
+            return;
+        }
+        if ((layout.getCharacteristicProperties(row) & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            enqueue(connection, GattOperationQueue.setNotification(
+                    GattAttributes.HRV_CONTROL_SERV_UUID, GattAttributes.TIMER_VAL_UUID, true));
+        }
+        readTimer(connection);
+    }
+
+    private void readTimer(GattConnection connection) {
+        GattLayout layout = mProfileCache.get(connection.getAddress());
+        if (layout != null && layout.findCharacteristic(GattAttributes.HRV_CONTROL_SERV_UUID,
+                GattAttributes.TIMER_VAL_UUID) >= 0) {
+            enqueue(connection, GattOperationQueue.readCharacteristic(
+                    GattAttributes.HRV_CONTROL_SERV_UUID, GattAttributes.TIMER_VAL_UUID));
+        }
+    }
+
+    private void onTimerValue(String address, byte[] value, int length, long now) {
+        int seconds = FanCountdown.parseSeconds(value, length);
+        if (seconds < 0) {
+            BleLog.w(LOG_TAG, "Unreadable timer value from " + address);
+            return;
+        }
+        getCountdown(address).onControllerValue(seconds, now);
+    }
+
+    private void onFirmwareRevision(GattConnection connection, String firmwareRevision) {
+        if (firmwareRevision == null) {
+            return;
+        }
+        if (!mProfileCache.updateFirmwareRevision(connection.getAddress(), firmwareRevision.trim())) {
+            // New firmware, the cached layout cannot be trusted
+            BleLog.d(LOG_TAG, "Firmware changed, rediscovering ", connection.getAddress());
+            connection.moveTo(GattConnection.State.DISCOVERING);
+            connection.markDiscoveryStarted();
+            enqueue(connection, GattOperationQueue.discoverServices());
+        }
+        saveProfileCache();
+    }
+
+    // Writes the cache out on the background thread if anything changed
+    private void saveProfileCache() {
+        mGattTimer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mProfileCache.isDirty()) {
+                    return;
+                }
+                File target = new File(getFilesDir(), PROFILE_CACHE_FILE);
+                File temp = new File(getFilesDir(), PROFILE_CACHE_FILE + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(temp)) {
+                    mProfileCache.writeTo(out);
+                    out.getFD().sync();
+                } catch (IOException e) {
+                    BleLog.w(LOG_TAG, "Unable to save the GATT profile cache", e);
+                    return;
+                }
+                if (!temp.renameTo(target)) {
+                    BleLog.w(LOG_TAG, "Unable to replace the GATT profile cache");
+                }
+            }
+        });
+    }
+
+    // Records are appended from the start; they reach the disk once the journal is open
+    private void openJournal() {
+        mJournal = new EventJournal(new File(getFilesDir(), JOURNAL_DIR));
+        mGattTimer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal.open();
+                } catch (IOException e) {
+                    BleLog.w(LOG_TAG, "Unable to open the event journal", e);
+                }
+            }
+        });
+        mGattTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal.flush();
+                } catch (IOException e) {
+                    BleLog.w(LOG_TAG, "Unable to write the event journal", e);
+                }
+            }
+        }, JOURNAL_FLUSH_INTERVAL_MS, JOURNAL_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void loadProfileCache() {
+        mGattTimer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (FileInputStream in = new FileInputStream(new File(getFilesDir(), PROFILE_CACHE_FILE))) {
+                    mProfileCache.readFrom(in);
+                } catch (FileNotFoundException e) {
+                    // Nothing cached yet
+                } catch (IOException e) {
+                    BleLog.w(LOG_TAG, "Discarding unreadable GATT profile cache", e);
+                }
+            }
+        });
+    }
+
+    // Maps a callback back to its connection. Returns null for a link that is no longer the
+    // current one for its address.
+    private GattConnection connectionFor(GattTransport.Link link) {
+        GattConnection connection = mConnections.peek(link.getAddress());
+        if (connection == null || connection.getLink() != link) {
+            // The link may have called back before openConnection got to registering it
+            synchronized (mOpenLock) {
+                connection = mConnections.peek(link.getAddress());
+            }
+        }
+        return (connection != null && connection.getLink() == link) ? connection : null;
+    }
+
+    private void onOperationComplete(GattTransport.Link link, int type, UUID characteristic, int status) {
+        GattConnection connection = connectionFor(link);
+        if (connection != null) {
+            connection.getQueue().onOperationComplete(type, characteristic, status);
+        }
+    }
+
+    private boolean enqueue(GattConnection connection, GattOperationQueue.Operation operation) {
+        connection.touch();
+        if (!connection.getQueue().enqueue(operation)) {
+            BleLog.w(LOG_TAG, "GATT operation queue full for " + connection.getAddress()
+                    + ", dropping operation " + operation.getType());
+            return false;
+        }
+        return true;
+    }
+
+    // Returns the connection for an address if it is able to take GATT operations
+    private GattConnection usableConnection(String address) {
+        if (mTransport == null || address == null) {
+            BleLog.d(LOG_TAG, "BluetoothAdapter not initialized or unspecified address");
+            return null;
+        }
+        GattConnection connection = mConnections.get(address);
+        if (connection == null || !connection.getState().isConnected()) {
+            BleLog.d(LOG_TAG, "Not connected to ", address);
+            return null;
+        }
+        return connection;
+    }
+
+    // Every notification becomes an event; a busy link would otherwise flood logcat
+    private final LogSampler mEventLogSampler = new LogSampler(20, 1000);
+    private final LogSampler mRssiLogSampler = new LogSampler(4, 1000);
+
+    private void postEvent(GattEvent event) {
+        BleLog.d(LOG_TAG, mEventLogSampler, "Posting ", event);
+        mEvents.post(event);
     }
 
     public class LocalBinder extends Binder {
@@ -116,6 +614,30 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mNotificationThread = new HandlerThread("GattNotifications", Process.THREAD_PRIORITY_FOREGROUND);
+        mNotificationThread.start();
+        mNotificationHandler = new Handler(mNotificationThread.getLooper());
+        createSessionChannel();
+        loadProfileCache();
+        openJournal();
+        mGattTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                releaseIdleLinks();
+            }
+        }, IDLE_CHECK_INTERVAL_MS, IDLE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Links do not survive the process, so there is nothing to come back for after a kill
+        return START_NOT_STICKY;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -123,11 +645,30 @@ public class BluetoothLeService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, make sure BluetoothGatt.close() is called
-        // to ensure resources are cleaned up properly. close() is invoked when the UI
-        // is disconnected from the service.
-        close();
-        return super.onUnbind(intent);
+        // Links outlive the screens that use them, releaseIdleLinks() closes them in the end.
+        // Returning true gets us onRebind() instead of onBind() for the next screen.
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        closeAll();
+        mMainHandler.removeCallbacksAndMessages(null);
+        mGattTimer.shutdownNow();
+        // Lets notifications already in the ring reach their listeners and the journal, then
+        // writes out what the journal still holds
+        mNotificationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal.close();
+                } catch (IOException e) {
+                    BleLog.w(LOG_TAG, "Unable to close the event journal", e);
+                }
+            }
+        });
+        mNotificationThread.quitSafely();
+        super.onDestroy();
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -139,102 +680,590 @@ public class BluetoothLeService extends Service {
         if (mBluetoothManager == null) {
             mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             if (mBluetoothManager == null) {
-                Log.d(LOG_TAG, "Unable to initialize BluetoothManager");
+                BleLog.d(LOG_TAG, "Unable to initialize BluetoothManager");
                 return false;
             }
         }
 
         mBluetoothAdapter = mBluetoothManager.getAdapter();
         if (mBluetoothAdapter == null) {
-            Log.d(LOG_TAG, "Unable to obtain a BluetoothAdapter");
+            BleLog.d(LOG_TAG, "Unable to obtain a BluetoothAdapter");
             return false;
         }
 
+        if (mTransport == null) {
+            mTransport = new AndroidGattTransport(this, mBluetoothAdapter);
+        }
         return true;
     }
 
+    // Runs every link over transport instead of the Bluetooth stack, e.g. a SimulatedTransport
+    // to put the service under load without hardware. Links on the old transport are closed.
+    public void setTransport(GattTransport transport) {
+        closeAll();
+        mTransport = transport;
+    }
+
+    // A screen showing address is in front of the user; its link is held until it detaches
+    public void attach(String address) {
+        mIdlePolicy.attach(address, SystemClock.elapsedRealtime());
+    }
+
+    // The screen went away; the link stays warm for the idle timeout in case it comes back
+    public void detach(String address) {
+        mIdlePolicy.detach(address, SystemClock.elapsedRealtime());
+        updateSession();
+    }
+
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        mIdlePolicy.setIdleTimeout(idleTimeoutMillis);
+    }
+
+    // Closes links that nobody has attached to or used for the idle timeout
+    private void releaseIdleLinks() {
+        long now = SystemClock.elapsedRealtime();
+        List<String> addresses = mReconnects.getWantedAddresses();
+        for (GattConnection connection : mConnections.snapshot()) {
+            if (!addresses.contains(connection.getAddress())) {
+                addresses.add(connection.getAddress());
+            }
+        }
+        for (String address : addresses) {
+            if (!mIdlePolicy.shouldRelease(address, now)) {
+                continue;
+            }
+            BleLog.d(LOG_TAG, "Releasing idle link to ", address);
+            mReconnects.forget(address);
+            GattConnection connection = mConnections.remove(address);
+            if (connection != null) {
+                boolean wasConnected = connection.getState() != GattConnection.State.DISCONNECTED;
+                closeConnection(connection);
+                if (wasConnected) {
+                    postEvent(GattEvent.disconnected(address, GattTransport.GATT_SUCCESS));
+                }
+            }
+            mIdlePolicy.forget(address);
+        }
+        updateSession();
+    }
+
+    private void createSessionChannel() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        NotificationChannel channel = new NotificationChannel(SESSION_CHANNEL_ID,
+                getString(R.string.notification_channel_links), NotificationManager.IMPORTANCE_LOW);
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (manager != null) {
+            manager.createNotificationChannel(channel);
+        }
+    }
+
+    // In the foreground while any link is held or wanted, stopped once there is nothing left to
+    // hold and no screen is attached
+    private void updateSession() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int connected = 0;
+                boolean holding = !mReconnects.getWantedAddresses().isEmpty();
+                for (GattConnection connection : mConnections.snapshot()) {
+                    GattConnection.State state = connection.getState();
+                    if (state.isConnected()) {
+                        connected++;
+                    }
+                    holding |= state != GattConnection.State.DISCONNECTED;
+                }
+                if (holding) {
+                    try {
+                        // Also refreshes the notification when already in the foreground
+                        startForeground(SESSION_NOTIFICATION_ID, buildSessionNotification(connected));
+                        mForeground = true;
+                    } catch (IllegalStateException e) {
+                        // Not allowed while the app is in the background on newer releases
+                        BleLog.w(LOG_TAG, "Unable to move to the foreground", e);
+                    }
+                    return;
+                }
+                if (mForeground) {
+                    stopForeground(true);
+                    mForeground = false;
+                }
+                if (!mIdlePolicy.hasAttachments()) {
+                    // Only ends the started state; bound screens keep the service alive
+                    stopSelf();
+                }
+            }
+        });
+    }
+
+    private Notification buildSessionNotification(int connected) {
+        Intent open = new Intent(this, MainActivity.class);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        return new NotificationCompat.Builder(this, SESSION_CHANNEL_ID)
+                .setSmallIcon(R.mipmap.avnan_app_logo)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getResources().getQuantityString(R.plurals.notification_links_text,
+                        connected, connected))
+                .setContentIntent(PendingIntent.getActivity(this, 0, open, flags))
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
+    // Events are delivered on executor, for one device or for all of them (null address)
+    // Listeners must be unregistered when they go away
+    public void registerEventListener(GattEventBus.Listener listener, Executor executor, String address) {
+        mEvents.register(listener, executor, address);
+    }
+
+    public void unregisterEventListener(GattEventBus.Listener listener) {
+        mEvents.unregister(listener);
+    }
+
+    // Caps the number of simultaneous links. Existing links above the cap are left alone and
+    // become eviction candidates as new connections are requested.
+    public void setMaxConnections(int maxConnections) {
+        mConnections.setMaxConnections(maxConnections);
+    }
+
     // Connects to the GATT server hosted on the ESP32
     // Return true if the connection is initiated successfully
     // Keep in mind, we are connecting to a particular BluetoothDevice object,
     //  obtained through the user's selection from the recycler view's onClick
+    // Other devices stay connected. If the pool is full, the least recently used idle link is
+    // closed to make room; if every link is busy the request is refused.
+    // If the link drops later it is brought back automatically until disconnect() or close()
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
-            Log.d(LOG_TAG, "BluetoothAdapter not initialized or unspecified address");
+        if (mTransport == null || address == null) {
+            BleLog.d(LOG_TAG, "BluetoothAdapter not initialized or unspecified address");
+            return false;
+        }
+        // Wanted before the link opens, so a drop that races this call is still brought back
+        boolean wasWanted = mReconnects.isWanted(address);
+        mReconnects.want(address);
+        if (openConnection(address, false)) {
+            return true;
+        }
+        // Refused: nothing to bring back, and nothing to hold the session open for
+        if (!wasWanted) {
+            mReconnects.forget(address);
+            updateSession();
+        }
+        return false;
+    }
+
+    // background opens the link with autoConnect, which waits for the device indefinitely
+    private boolean openConnection(String address, boolean background) {
+        synchronized (mOpenLock) {
+            return openConnectionLocked(address, background);
+        }
+    }
+
+    private boolean openConnectionLocked(String address, boolean background) {
+        if (mTransport == null) {
             return false;
         }
+        GattConnection existing = mConnections.get(address);
+        if (existing != null) {
+            GattConnection.State state = existing.getState();
+            boolean waitingInBackground = state == GattConnection.State.CONNECTING
+                    && existing.isBackground() && !background;
+            if (state != GattConnection.State.DISCONNECTED && state != GattConnection.State.DISCONNECTING
+                    && !waitingInBackground) {
+                // Already connected or on the way there
+                return true;
+            }
+            if (state == GattConnection.State.DISCONNECTED && reopen(existing)) {
+                return true;
+            }
+            // Start over with a fresh link
+            removeAndClose(address);
+        } else if (mConnections.isFull()) {
+            GattConnection evicted = mConnections.findEvictionCandidate();
+            if (evicted == null) {
+                BleLog.w(LOG_TAG, "All " + mConnections.getMaxConnections() + " connections are busy");
+                return false;
+            }
+            BleLog.d(LOG_TAG, "Evicting idle connection ", evicted.getAddress());
+            boolean wasConnected = evicted.getState() != GattConnection.State.DISCONNECTED;
+            mReconnects.forget(evicted.getAddress());
+            removeAndClose(evicted.getAddress());
+            if (wasConnected) {
+                postEvent(GattEvent.disconnected(evicted.getAddress(), GattTransport.GATT_SUCCESS));
+            }
+        }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.d(LOG_TAG, "Device not found. Unable to connect");
+        // Directly connect to the device, or let the controller wait for it
+        GattTransport.Link link = mTransport.connect(address, background, mGattCallback);
+        if (link == null) {
+            BleLog.d(LOG_TAG, "Device not found. Unable to connect");
             return false;
         }
+        GattConnection connection = newConnection(address, link, background);
+        mConnections.put(address, connection);
+        BleLog.d(LOG_TAG, "Trying to create a new connection");
+        updateSession();
+        return true;
+    }
 
-        // Directly connect to the device
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(LOG_TAG, "Trying to create a new connection");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+    // Whether a lost link is worth keeping for reopen()
+    private boolean canReopen(GattConnection connection) {
+        GattLayout cached = mProfileCache.get(connection.getAddress());
+        return cached != null && cached.equals(connection.getLink().getLayout());
+    }
+
+    // Reconnects a known controller on the link it was last connected over, which still holds
+    // its services; the firmware revision read after connecting confirms they are current. The
+    // stack reconnects such a link with autoConnect, so it counts as a background connection.
+    private boolean reopen(GattConnection old) {
+        if (!canReopen(old)) {
+            return false;
+        }
+        String address = old.getAddress();
+        stopConnection(old);
+        GattConnection connection = newConnection(address, old.getLink(), true);
+        mConnections.put(address, connection);
+        if (!old.getLink().reconnect()) {
+            // The caller closes it and starts over
+            mConnections.put(address, old);
+            return false;
+        }
+        BleLog.d(LOG_TAG, "Reopening the link to ", address);
+        updateSession();
         return true;
     }
 
+    private GattConnection newConnection(String address, GattTransport.Link link, boolean background) {
+        final GattConnection connection = new GattConnection(address, link, background, mGattTimer);
+        connection.getQueue().setListener(new GattOperationQueue.Listener() {
+            @Override
+            public void onOperationFinished(GattOperationQueue.Operation operation, int status) {
+                if (status != GattOperationQueue.STATUS_SUCCESS) {
+                    BleLog.w(LOG_TAG, "GATT operation " + operation.getType() + " on "
+                            + connection.getAddress() + " finished with status " + status);
+                    mMetrics.forDevice(connection.getAddress()).recordStatus(status);
+                }
+                if (operation.getType() == GattOperationQueue.OP_WRITE_CHARACTERISTIC) {
+                    connection.getAckTracker().onWriteFinished(operation,
+                            status == GattOperationQueue.STATUS_SUCCESS);
+                }
+                connection.getCommandStream().onOperationFinished(operation, status);
+            }
+        });
+        connection.moveTo(GattConnection.State.CONNECTING);
+        return connection;
+    }
+
     // Disconnects an existing connection or cancels a pending connection
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.d(LOG_TAG, "BluetoothAdapter not initialized");
+    public void disconnect(String address) {
+        mReconnects.forget(address);
+        GattConnection connection = mConnections.get(address);
+        if (mTransport == null || connection == null) {
+            BleLog.d(LOG_TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        if (connection.moveTo(GattConnection.State.DISCONNECTING)) {
+            connection.getQueue().clear();
+            connection.getLink().disconnect();
+        }
     }
 
     // After using a given BLE device, the app must call this method to ensure resources are
     // released properly
-    public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+    public void close(String address) {
+        mReconnects.forget(address);
+        removeAndClose(address);
+        updateSession();
+    }
+
+    private void removeAndClose(String address) {
+        GattConnection connection = mConnections.remove(address);
+        if (connection != null) {
+            closeConnection(connection);
+        }
+    }
+
+    // Releases every link, e.g. when the UI goes away
+    public void closeAll() {
+        mReconnects.forgetAll();
+        for (GattConnection connection : mConnections.removeAll()) {
+            closeConnection(connection);
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        updateSession();
+    }
+
+    private void closeConnection(GattConnection connection) {
+        stopConnection(connection);
+        connection.getLink().close();
+    }
+
+    // Everything but closing the link
+    private void stopConnection(GattConnection connection) {
+        connection.setLinkCheck(null);
+        connection.setRssiPoll(null);
+        connection.getQueue().clear();
+        connection.moveTo(GattConnection.State.DISCONNECTED);
+        // Commands written on the link will not be acknowledged now
+        mMetrics.forDevice(connection.getAddress()).recordMissingAcks(connection.getAckTracker().abandon());
+    }
+
+    public GattConnection.State getConnectionState(String address) {
+        GattConnection connection = mConnections.peek(address);
+        return connection == null ? GattConnection.State.DISCONNECTED : connection.getState();
+    }
+
+    // Notifications received but not yet handed to listeners
+    public int getNotificationQueueDepth() {
+        return mNotifications.size();
+    }
+
+    public int getNotificationQueueHighWaterMark() {
+        return mNotifications.getHighWaterMark();
+    }
+
+    // Notifications lost because listeners could not keep up
+    public long getDroppedNotificationCount() {
+        return mNotifications.getDroppedCount();
+    }
+
+    // Time the last connection to an address took to come up, or -1
+    public long getConnectLatency(String address) {
+        GattConnection connection = mConnections.peek(address);
+        return connection == null ? -1 : connection.getConnectLatency();
+    }
+
+    public List<String> getConnectedAddresses() {
+        List<String> connected = new ArrayList<>();
+        for (GattConnection connection : mConnections.snapshot()) {
+            if (connection.getState().isConnected()) {
+                connected.add(connection.getAddress());
+            }
+        }
+        return connected;
     }
 
     // Request a read on a given characteristic
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.d(LOG_TAG, "BluetoothAdapter not initialized");
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        GattConnection connection = usableConnection(address);
+        if (connection == null) {
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        enqueue(connection, GattOperationQueue.readCharacteristic(
+                characteristic.getService().getUuid(), characteristic.getUuid()));
     }
 
     // Write to a given characteristic
-    public boolean writeToCharacteristic(BluetoothGattCharacteristic characteristic, String command) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.d(LOG_TAG, "BluetoothAdapter not initialized");
+    // The value is copied into the queue, so the caller may reuse its buffer afterwards
+    // A write that is still waiting in the queue is replaced by a newer one to the same
+    // characteristic. Returns false if the queue is full.
+    public boolean writeToCharacteristic(String address, BluetoothGattCharacteristic characteristic, byte[] value) {
+        return writeCommand(address, characteristic.getService().getUuid(), characteristic.getUuid(), value);
+    }
+
+    private boolean writeCommand(String address, UUID service, UUID characteristic, byte[] value) {
+        GattConnection connection = usableConnection(address);
+        if (connection == null) {
             return false;
         }
-        // Have to convert a string into a byte array first
-        // then set the value of the characteristic before requesting
-        // a write to it
-        byte[] commandBytes = command.getBytes();
-        characteristic.setValue(commandBytes);
-        return mBluetoothGatt.writeCharacteristic(characteristic);
+        noteInteraction(connection);
+        int minutes = ControlProtocol.decodeTimerMinutes(value, 0, value.length);
+        if (minutes >= 0) {
+            getCountdown(address).onCommandSent(minutes);
+        }
+        GattOperationQueue.Operation write = GattOperationQueue.writeCharacteristic(service, characteristic,
+                value, GattClient.WRITE_TYPE_DEFAULT, true);
+        boolean queued = enqueue(connection, write);
+        if (queued) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            AckTracker acks = connection.getAckTracker();
+            mMetrics.forDevice(address).recordMissingAcks(acks.expire(now));
+            acks.onSent(write, now);
+        }
+        mJournal.append(EventJournal.TYPE_COMMAND, System.currentTimeMillis(), address, queued ? 0 : 1, minutes,
+                ControlProtocol.messageType(value, 0, value.length));
+        return queued;
+    }
+
+    // Sends one command to every controller in addresses, at most as many at a time as the pool
+    // holds links, and reports per device whether and how fast it acknowledged. Links opened for
+    // the dispatch are closed again once their device is done, unless a screen is attached to it
+    // or it is wanted by a connect(). callback runs on executor. The dispatch can be cancelled
+    // through the returned object.
+    public FleetDispatch dispatchToFleet(List<String> addresses, byte[] command,
+                                         FleetDispatch.Callback callback, Executor executor) {
+        FleetDispatch dispatch = new FleetDispatch(addresses, command, mConnections.getMaxConnections(),
+                mFleetPort, mGattTimer, callback, executor);
+        mEvents.register(dispatch, mGattTimer);
+        dispatch.start();
+        return dispatch;
+    }
+
+    private final FleetDispatch.Port mFleetPort = new FleetDispatch.Port() {
+        @Override
+        public boolean connect(String address) {
+            // No automatic reconnects; the dispatch retries on its own terms
+            return openConnection(address, false);
+        }
+
+        @Override
+        public boolean isReady(String address) {
+            GattConnection connection = mConnections.peek(address);
+            return connection != null && connection.getState() == GattConnection.State.READY;
+        }
+
+        @Override
+        public boolean send(String address, byte[] command) {
+            GattConnection connection = usableConnection(address);
+            if (connection == null) {
+                return false;
+            }
+            // Already on if the device was set up by a screen; enabling twice does no harm
+            enqueue(connection, GattOperationQueue.setNotification(
+                    GattAttributes.HRV_CONTROL_SERV_UUID, GattAttributes.CONTROL_ACKNOWLEDGE_UUID, true));
+            return writeCommand(address, GattAttributes.HRV_CONTROL_SERV_UUID,
+                    GattAttributes.HRV_CONTROL_CHAR_UUID, command);
+        }
+
+        @Override
+        public void release(String address, boolean opened) {
+            if (!opened || mIdlePolicy.isAttached(address)
+                    || mReconnects.getWantedAddresses().contains(address)) {
+                return;
+            }
+            GattConnection connection = mConnections.remove(address);
+            if (connection != null) {
+                boolean wasConnected = connection.getState() != GattConnection.State.DISCONNECTED;
+                closeConnection(connection);
+                if (wasConnected) {
+                    postEvent(GattEvent.disconnected(address, GattTransport.GATT_SUCCESS));
+                }
+            }
+            mIdlePolicy.forget(address);
+            updateSession();
+        }
+
+        @Override
+        public void onDispatchFinished(FleetDispatch dispatch) {
+            mEvents.unregister(dispatch);
+        }
+    };
+
+    // Streams whole rtX commands (see ControlProtocol) to a characteristic
+    // Commands are packed into as few packets as the negotiated MTU allows and written without
+    // response if the characteristic supports it, with a few packets in flight at a time. Meant
+    // for schedules and bulk configuration; single interactive commands should keep using
+    // writeToCharacteristic, which replaces a stale pending value instead of queueing behind it.
+    // Returns false, sending nothing, if not connected or the stream's backlog is full.
+    public boolean streamCommands(String address, BluetoothGattCharacteristic characteristic,
+                                  byte[] commands, int offset, int length) {
+        GattConnection connection = usableConnection(address);
+        if (connection == null) {
+            return false;
+        }
+        int writeType = (characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                ? GattClient.WRITE_TYPE_NO_RESPONSE : GattClient.WRITE_TYPE_DEFAULT;
+        noteInteraction(connection);
+        CommandStream stream = connection.getCommandStream();
+        stream.setTarget(characteristic.getService().getUuid(), characteristic.getUuid(), writeType);
+        return stream.send(commands, offset, length);
+    }
+
+    // The user is working with a device; its link goes to INTERACTIVE until they stop. Commands
+    // written through the service count as interaction, this lets the UI get the link ready before
+    // the first one.
+    public void noteInteraction(String address) {
+        GattConnection connection = usableConnection(address);
+        if (connection != null) {
+            noteInteraction(connection);
+        }
+    }
+
+    // Keeps a link on one profile; null goes back to switching automatically
+    public void setLinkProfile(String address, LinkProfile profile) {
+        GattConnection connection = usableConnection(address);
+        if (connection != null) {
+            connection.getLinkSelector().pin(profile);
+            updateLinkProfile(connection);
+        }
+    }
+
+    // The controller's fan timer as last reported, interpolated; kept while the service runs so a
+    // screen can pick it up again at any time
+    public FanCountdown getCountdown(String address) {
+        FanCountdown countdown = mCountdowns.get(address);
+        if (countdown == null) {
+            FanCountdown created = new FanCountdown();
+            countdown = mCountdowns.putIfAbsent(address, created);
+            if (countdown == null) {
+                countdown = created;
+            }
+        }
+        return countdown;
+    }
+
+    // Everything observed of the controllers, also from earlier sessions; read it with
+    // getJournal().newReader() after a flush
+    public EventJournal getJournal() {
+        return mJournal;
+    }
+
+    // Everything measured since the service started, for display in the app
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    // Writes the metrics of every device to target, on the background thread
+    public void exportMetrics(final File target) {
+        mGattTimer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (Writer out = new BufferedWriter(new FileWriter(target))) {
+                    mMetrics.writeTo(out, SystemClock.elapsedRealtime());
+                } catch (IOException e) {
+                    BleLog.w(LOG_TAG, "Unable to export metrics to " + target, e);
+                    return;
+                }
+                BleLog.d(LOG_TAG, "Exported metrics to ", target);
+            }
+        });
+    }
+
+    // What the link is running with, for measuring its effect on round-trip times
+    public LinkParameters getLinkParameters(String address) {
+        GattConnection connection = mConnections.peek(address);
+        return connection == null ? LinkParameters.UNKNOWN : connection.getLinkParameters();
+    }
+
+    // ATT MTU negotiated with a device, or the default if not connected
+    public int getMtu(String address) {
+        GattConnection connection = mConnections.peek(address);
+        return connection == null ? GattConnection.DEFAULT_MTU : connection.getMtu();
     }
 
     // Enables or disables notifications on a given characteristic
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.d(LOG_TAG, "BluetoothAdapter not initialized");
+    public void setCharacteristicNotification(String address, BluetoothGattCharacteristic characteristic, boolean enabled) {
+        GattConnection connection = usableConnection(address);
+        if (connection == null) {
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-        Log.d(LOG_TAG, "Characteristic notification set.");
+        enqueue(connection, GattOperationQueue.setNotification(
+                characteristic.getService().getUuid(), characteristic.getUuid(), enabled));
     }
 
     // Retrieves a list of supported GATT services on the connected device
     // Invoked only after BluetoothGatt#discoverServices() is successful
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    // Simulated links have no framework objects to hand out and return null as well
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        GattConnection connection = mConnections.get(address);
+        if (connection == null || !(connection.getLink() instanceof AndroidGattTransport.AndroidLink)) return null;
 
-        return mBluetoothGatt.getServices();
+        return ((AndroidGattTransport.AndroidLink) connection.getLink()).getServices();
     }
 
 }
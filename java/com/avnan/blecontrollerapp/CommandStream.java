@@ -0,0 +1,205 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.UUID;
+
+// Streams a run of control commands to one characteristic, as fast as the link takes them
+// Commands are packed several to a packet, as many whole commands as fit in the negotiated
+// ATT payload (MTU - 3); a command is never split across packets. At most window packets are
+// handed to the GattOperationQueue at a time, each one freeing its place when
+// onCharacteristicWrite reports it done, so a long stream neither overflows the queue nor starves
+// the other operations on the link.
+// Thread safe. Android-free.
+public class CommandStream {
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int DEFAULT_BACKLOG_COMMANDS = 256;
+    // The payload of the default 23-byte ATT MTU
+    public static final int MIN_PAYLOAD = 20;
+
+    private final GattOperationQueue mQueue;
+    private final int mCommandLength;
+    private final int mWindow;
+    // Commands waiting to be packed, as a circular byte buffer of whole commands
+    private final byte[] mBacklog;
+    private int mBacklogStart;
+    private int mBacklogLength;
+    private byte[] mPacket;
+
+    private UUID mService;
+    private UUID mCharacteristic;
+    private int mWriteType = GattClient.WRITE_TYPE_DEFAULT;
+    private int mMaxPayload = MIN_PAYLOAD;
+    private int mInFlight;
+    // The writes counted in mInFlight; completions are matched against these, so changing the
+    // target never strands one
+    private final GattOperationQueue.Operation[] mOutstanding;
+    // The write being handed to the queue, and whether the queue refused it from inside enqueue()
+    private GattOperationQueue.Operation mEnqueuing;
+    private boolean mRefusedInEnqueue;
+    private boolean mPumping;
+    private long mSentPackets;
+    private long mFailedPackets;
+
+    public CommandStream(GattOperationQueue queue) {
+        this(queue, ControlProtocol.COMMAND_LENGTH, DEFAULT_WINDOW, DEFAULT_BACKLOG_COMMANDS);
+    }
+
+    public CommandStream(GattOperationQueue queue, int commandLength, int window, int backlogCommands) {
+        if (commandLength < 1 || commandLength > MIN_PAYLOAD || window < 1 || backlogCommands < 1) {
+            throw new IllegalArgumentException("Invalid stream configuration");
+        }
+        mQueue = queue;
+        mCommandLength = commandLength;
+        mWindow = window;
+        mBacklog = new byte[commandLength * backlogCommands];
+        mOutstanding = new GattOperationQueue.Operation[window];
+        mPacket = new byte[MIN_PAYLOAD];
+    }
+
+    // Where the commands go. Takes effect from the next packet; packets already in flight finish
+    // on the old target.
+    public synchronized void setTarget(UUID service, UUID characteristic, int writeType) {
+        mService = service;
+        mCharacteristic = characteristic;
+        mWriteType = writeType;
+    }
+
+    // Called when the MTU is negotiated
+    public synchronized void setMaxPayload(int maxPayload) {
+        mMaxPayload = Math.max(MIN_PAYLOAD, maxPayload);
+    }
+
+    // Queues length bytes of whole commands. Returns false, queueing nothing, if length is not a
+    // whole number of commands or the backlog has no room for all of them.
+    public synchronized boolean send(byte[] commands, int offset, int length) {
+        if (mCharacteristic == null || length % mCommandLength != 0
+                || length > mBacklog.length - mBacklogLength) {
+            return false;
+        }
+        int end = (mBacklogStart + mBacklogLength) % mBacklog.length;
+        int first = Math.min(length, mBacklog.length - end);
+        System.arraycopy(commands, offset, mBacklog, end, first);
+        System.arraycopy(commands, offset + first, mBacklog, 0, length - first);
+        mBacklogLength += length;
+        pump();
+        return true;
+    }
+
+    // Forwarded from the queue's Listener for every operation. Any completion frees queue space,
+    // only this stream's own writes free window space.
+    public void onOperationFinished(GattOperationQueue.Operation operation, int status) {
+        synchronized (this) {
+            if (takeOutstanding(operation)) {
+                mInFlight--;
+                if (status != GattOperationQueue.STATUS_SUCCESS) {
+                    mFailedPackets++;
+                }
+                if (status == GattOperationQueue.STATUS_REFUSED) {
+                    // Never went out, so not sent
+                    if (operation == mEnqueuing) {
+                        mRefusedInEnqueue = true;
+                    } else {
+                        mSentPackets--;
+                    }
+                }
+                if (status == GattOperationQueue.STATUS_CANCELLED) {
+                    // The link went away, what is left is stale
+                    mBacklogLength = 0;
+                    return;
+                }
+            }
+        }
+        pump();
+    }
+
+    private boolean takeOutstanding(GattOperationQueue.Operation operation) {
+        for (int i = 0; i < mOutstanding.length; i++) {
+            if (mOutstanding[i] == operation) {
+                mOutstanding[i] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void putOutstanding(GattOperationQueue.Operation operation) {
+        for (int i = 0; i < mOutstanding.length; i++) {
+            if (mOutstanding[i] == null) {
+                mOutstanding[i] = operation;
+                return;
+            }
+        }
+    }
+
+    // Drops commands that have not been packed yet
+    public synchronized void clear() {
+        mBacklogLength = 0;
+    }
+
+    // Commands not yet handed to the queue
+    public synchronized int getBacklog() {
+        return mBacklogLength / mCommandLength;
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    // Packets handed to the queue and not refused by the link
+    public synchronized long getSentPackets() {
+        return mSentPackets;
+    }
+
+    public synchronized long getFailedPackets() {
+        return mFailedPackets;
+    }
+
+    public synchronized boolean isIdle() {
+        return mInFlight == 0 && mBacklogLength == 0;
+    }
+
+    // Holds the lock across enqueue(). The queue never calls back into us while holding its own
+    // lock, and a refusal reported from inside enqueue() is handled re-entrantly.
+    private synchronized void pump() {
+        if (mPumping) {
+            // Re-entered from enqueue(); the loop below takes up the freed window
+            return;
+        }
+        mPumping = true;
+        try {
+            while (mInFlight < mWindow && mBacklogLength > 0) {
+                int perPacket = Math.max(1, mMaxPayload / mCommandLength) * mCommandLength;
+                int length = Math.min(perPacket, mBacklogLength);
+                if (mPacket.length < length) {
+                    mPacket = new byte[perPacket];
+                }
+                int first = Math.min(length, mBacklog.length - mBacklogStart);
+                System.arraycopy(mBacklog, mBacklogStart, mPacket, 0, first);
+                System.arraycopy(mBacklog, 0, mPacket, first, length - first);
+                mBacklogStart = (mBacklogStart + length) % mBacklog.length;
+                mBacklogLength -= length;
+                // Never coalesced, every packet carries different commands
+                GattOperationQueue.Operation write = GattOperationQueue.writeCharacteristic(mService,
+                        mCharacteristic, mPacket, 0, length, mWriteType, false);
+                mInFlight++;
+                putOutstanding(write);
+                mEnqueuing = write;
+                mRefusedInEnqueue = false;
+                boolean queued = mQueue.enqueue(write);
+                mEnqueuing = null;
+                if (!queued) {
+                    // Queue full. Put the commands back; they go out once the queue moves again.
+                    mInFlight--;
+                    takeOutstanding(write);
+                    mBacklogStart = (mBacklogStart - length + mBacklog.length) % mBacklog.length;
+                    mBacklogLength += length;
+                    return;
+                }
+                if (!mRefusedInEnqueue) {
+                    mSentPackets++;
+                }
+            }
+        } finally {
+            mPumping = false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Connections keyed by device address, kept in least-recently-used order
+// The pool itself never opens or closes anything; when it is full the owner asks for an
+// eviction candidate, closes it and removes it. Only idle members are ever offered for eviction.
+// Thread safe. Android-free.
+public class ConnectionPool<C extends ConnectionPool.Member> {
+    public interface Member {
+        // True if the connection may be torn down without interrupting anything
+        boolean isIdle();
+    }
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+    // Access ordered, so iteration starts with the least recently used connection
+    private final LinkedHashMap<String, C> mConnections = new LinkedHashMap<>(16, 0.75f, true);
+    private int mMaxConnections;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public ConnectionPool(int maxConnections) {
+        setMaxConnections(maxConnections);
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Need room for at least one connection");
+        }
+        mMaxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    // Looks up a connection and marks it as recently used
+    public synchronized C get(String address) {
+        return mConnections.get(address);
+    }
+
+    // Looks up a connection without changing its position in the LRU order
+    // Used from the GATT callbacks, which should not keep a connection alive on their own
+    public synchronized C peek(String address) {
+        // Iterating does not reorder an access ordered map, get() would. The pool is tiny.
+        for (Map.Entry<String, C> entry : mConnections.entrySet()) {
+            if (entry.getKey().equals(address)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    public synchronized void put(String address, C connection) {
+        mConnections.put(address, connection);
+    }
+
+    public synchronized C remove(String address) {
+        return mConnections.remove(address);
+    }
+
+    // Removes the member only if it is still the one held for its address
+    public synchronized boolean remove(String address, C connection) {
+        if (mConnections.get(address) != connection) {
+            return false;
+        }
+        mConnections.remove(address);
+        return true;
+    }
+
+    public synchronized boolean isFull() {
+        return mConnections.size() >= mMaxConnections;
+    }
+
+    public synchronized int size() {
+        return mConnections.size();
+    }
+
+    // Returns the least recently used idle connection, or null if every connection is busy
+    public synchronized C findEvictionCandidate() {
+        for (C connection : mConnections.values()) {
+            if (connection.isIdle()) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    // A copy, so the caller can close connections while iterating
+    public synchronized List<C> snapshot() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    public synchronized List<C> removeAll() {
+        List<C> all = new ArrayList<>(mConnections.values());
+        mConnections.clear();
+        return all;
+    }
+
+    public synchronized List<String> addresses() {
+        return new ArrayList<>(mConnections.keySet());
+    }
+}
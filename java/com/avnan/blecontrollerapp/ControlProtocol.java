@@ -0,0 +1,140 @@
+package com.avnan.blecontrollerapp;
+
+// Encoding and decoding for the HRV controller's command protocol
+// The command string format
+// rtX,SS,TM,ID\r\n
+// rt1, rt2, rt3
+// SS = Signal strength (two hex digits)
+// TM = Timer value (00, 20, 40, 60)
+// ID = 1 to 5
+// The controller acknowledges a command with rt2,S\r\n where S is the status (1 = accepted)
+//
+// Nothing in here depends on the Android framework. Commands are written into a buffer owned by
+// the caller and notifications are parsed straight out of the received byte array, so neither
+// direction creates any objects per frame.
+public final class ControlProtocol {
+    // Every command is exactly this long, so a single buffer of this size can be reused
+    public static final int COMMAND_LENGTH = 13;
+
+    // Message types (the X in rtX)
+    public static final int MSG_ACKNOWLEDGE = 2;
+    public static final int MSG_TIMER = 3;
+
+    public static final int SIGNAL_STRENGTH_FULL = 0xFF;
+
+    public static final int TIMER_OFF = 0;
+    public static final int TIMER_TWENTY = 20;
+    public static final int TIMER_FORTY = 40;
+    public static final int TIMER_SIXTY = 60;
+
+    public static final int MIN_UNIT_ID = 1;
+    public static final int MAX_UNIT_ID = 5;
+
+    // Acknowledgement status values
+    public static final int ACK_ACCEPTED = 1;
+    public static final int NOT_AN_ACK = -1;
+
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    private ControlProtocol() {
+    }
+
+    // Writes rtX,SS,TM,ID\r\n into dst starting at offset
+    // Returns the number of bytes written (always COMMAND_LENGTH)
+    public static int encodeCommand(byte[] dst, int offset, int messageType, int signalStrength,
+                                    int timerMinutes, int unitId) {
+        if (messageType < 0 || messageType > 9) {
+            throw new IllegalArgumentException("Message type out of range: " + messageType);
+        }
+        if (signalStrength < 0 || signalStrength > 0xFF) {
+            throw new IllegalArgumentException("Signal strength out of range: " + signalStrength);
+        }
+        if (timerMinutes < 0 || timerMinutes > 99) {
+            throw new IllegalArgumentException("Timer value out of range: " + timerMinutes);
+        }
+        if (unitId < MIN_UNIT_ID || unitId > MAX_UNIT_ID) {
+            throw new IllegalArgumentException("Unit ID out of range: " + unitId);
+        }
+        if (dst.length - offset < COMMAND_LENGTH) {
+            throw new IllegalArgumentException("Buffer too small for a command");
+        }
+        int i = offset;
+        dst[i++] = 'r';
+        dst[i++] = 't';
+        dst[i++] = (byte) ('0' + messageType);
+        dst[i++] = ',';
+        dst[i++] = HEX_DIGITS[signalStrength >> 4];
+        dst[i++] = HEX_DIGITS[signalStrength & 0x0F];
+        dst[i++] = ',';
+        dst[i++] = (byte) ('0' + timerMinutes / 10);
+        dst[i++] = (byte) ('0' + timerMinutes % 10);
+        dst[i++] = ',';
+        dst[i++] = (byte) ('0' + unitId);
+        dst[i++] = '\r';
+        dst[i] = '\n';
+        return COMMAND_LENGTH;
+    }
+
+    // Convenience for the only command the app currently sends: run the fan for the given time
+    public static int encodeTimerCommand(byte[] dst, int offset, int timerMinutes, int unitId) {
+        return encodeCommand(dst, offset, MSG_TIMER, SIGNAL_STRENGTH_FULL, timerMinutes, unitId);
+    }
+
+    // Returns X for a well formed rtX...\r\n frame, or -1 if the bytes are not a protocol frame
+    public static int messageType(byte[] src, int offset, int length) {
+        if (src == null || length < 5 || offset < 0 || offset + length > src.length) {
+            return -1;
+        }
+        if (src[offset] != 'r' || src[offset + 1] != 't'
+                || src[offset + length - 2] != '\r' || src[offset + length - 1] != '\n') {
+            return -1;
+        }
+        int type = src[offset + 2] - '0';
+        return (type >= 0 && type <= 9) ? type : -1;
+    }
+
+    // Parses an acknowledgement frame (rt2,S\r\n) in place
+    // Returns the status S, or NOT_AN_ACK if the frame is anything else
+    public static int decodeAcknowledgement(byte[] src, int offset, int length) {
+        if (messageType(src, offset, length) != MSG_ACKNOWLEDGE || src[offset + 3] != ',') {
+            return NOT_AN_ACK;
+        }
+        int end = offset + length - 2;
+        int i = offset + 4;
+        if (i == end) {
+            return NOT_AN_ACK;
+        }
+        int status = 0;
+        for (; i < end; i++) {
+            int digit = src[i] - '0';
+            if (digit < 0 || digit > 9 || status > 99999) {
+                return NOT_AN_ACK;
+            }
+            status = status * 10 + digit;
+        }
+        return status;
+    }
+
+    // The controller's side: parses the TM field of a timer command (rt3,SS,TM,ID\r\n) in place
+    // Returns the minutes, or -1 if the frame is not a well formed timer command
+    public static int decodeTimerMinutes(byte[] src, int offset, int length) {
+        if (length != COMMAND_LENGTH || messageType(src, offset, length) != MSG_TIMER
+                || src[offset + 3] != ',' || src[offset + 6] != ',' || src[offset + 9] != ',') {
+            return -1;
+        }
+        int tens = src[offset + 7] - '0';
+        int ones = src[offset + 8] - '0';
+        int unit = src[offset + 10] - '0';
+        if (tens < 0 || tens > 9 || ones < 0 || ones > 9 || unit < MIN_UNIT_ID || unit > MAX_UNIT_ID) {
+            return -1;
+        }
+        return tens * 10 + ones;
+    }
+
+    public static boolean isAcceptedAcknowledgement(byte[] src) {
+        return src != null && decodeAcknowledgement(src, 0, src.length) == ACK_ACCEPTED;
+    }
+
+}
@@ -2,20 +2,18 @@ package com.avnan.blecontrollerapp;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.cardview.widget.CardView;
+import androidx.core.content.ContextCompat;
 
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.CountDownTimer;
 import android.os.IBinder;
-import android.util.Log;
+import android.os.SystemClock;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
@@ -23,19 +21,11 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 
 import java.util.List;
-import java.util.Locale;
-import java.util.UUID;
 
 import static com.avnan.blecontrollerapp.ScanListAdapter.EXTRA_DEVICE;
 
 public class DeviceDetailsActivity extends AppCompatActivity {
-    // The command string format
-    // rtX,SS,TM,ID\r\n
-    // rt1, rt2, rt3
-    // SS = Signal strength
-    // TM = Timer value (00, 20, 40, 60)
-    // ID = 1 to 5
-    // \r\n - needs to be added to the end of the string
+    // Commands follow the rtX,SS,TM,ID\r\n format, see ControlProtocol
 
     private static final String LOG_TAG = DeviceDetailsActivity.class.getSimpleName();
 
@@ -46,12 +36,18 @@ public class DeviceDetailsActivity extends AppCompatActivity {
     private BluetoothGattCharacteristic mControlInput;
     private BluetoothGattCharacteristic mControlAcknowledgement;
 
-    private String mTimerCommandString;
+    // Commands are encoded into this buffer rather than built as Strings
+    private final byte[] mCommandBuffer = new byte[ControlProtocol.COMMAND_LENGTH];
+    private int mTimerMinutes;
+    private int mUnitId = ControlProtocol.MIN_UNIT_ID;
 
     private boolean isCorrectDevice = false;
-    private boolean isCountingDown = false;
+    // Attached to the service's session for our device while the screen is visible
+    private boolean mAttached = false;
+    // Whether the countdown is on screen; the countdown itself lives in the service
+    private boolean mCountdownShown = false;
+    private final char[] mCountdownChars = new char[FanCountdown.DISPLAY_LENGTH];
 
-    private int mTimerValue;
     private int shortAnimationDuration;
     private int longAnimationDuration;
 
@@ -65,7 +61,13 @@ public class DeviceDetailsActivity extends AppCompatActivity {
 
     private RadioGroup mFanControlRadioGroup;
 
-    private CountDownTimer mFanTimer;
+    // Redraws the countdown when its second changes, while the screen is visible
+    private final Runnable mRenderCountdown = new Runnable() {
+        @Override
+        public void run() {
+            renderCountdown();
+        }
+    };
 
     private ImageButton mConnectBttn;
     private ImageButton mDisconnectBttn;
@@ -78,9 +80,23 @@ public class DeviceDetailsActivity extends AppCompatActivity {
             if (!mBluetoothLeService.initialize()) {
                 finish();
             }
-            // Automatically connect to the device upon successful start-up initialization
-            showConnectingState();
-            mBluetoothLeService.connect(mBluetoothDevice.getAddress());
+            // Our device's events only, on the main thread
+            mBluetoothLeService.registerEventListener(mGattEventListener,
+                    ContextCompat.getMainExecutor(DeviceDetailsActivity.this), mBluetoothDevice.getAddress());
+            attachToSession();
+            if (mBluetoothLeService.getConnectionState(mBluetoothDevice.getAddress()) == GattConnection.State.READY) {
+                // Still connected from an earlier visit or before a rotation, there will be no
+                // discovery to wait for
+                StartupTrace.end(StartupTrace.CONNECT);
+                getGattProfile(mBluetoothLeService.getSupportedGattServices(mBluetoothDevice.getAddress()));
+                showConnectedState();
+                toggleFanTimerControl(isCorrectDevice);
+            } else {
+                // Automatically connect to the device upon successful start-up initialization
+                showConnectingState();
+                mBluetoothLeService.connect(mBluetoothDevice.getAddress());
+            }
+            renderCountdown();
         }
 
         @Override
@@ -89,35 +105,47 @@ public class DeviceDetailsActivity extends AppCompatActivity {
         }
     };
 
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    private final GattEventBus.Listener mGattEventListener = new GattEventBus.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (action != null) {
-                switch (action) {
-                    case BluetoothLeService.ACTION_GATT_CONNECTED:
-                        break;
-                    case BluetoothLeService.ACTION_DATA_AVAILABLE:
-                        Log.d(LOG_TAG, "Received a notification from the ESP");
-                        if (isCountingDown)
-                            startFanTimer(mTimerValue);
-                        break;
-                    case BluetoothLeService.ACTION_GATT_DISCONNECTED:
-                        if (!isCountingDown)
-                            clearTimerDisplay();
-                        showDisconnectedState();
-                        toggleFanTimerControl(false);
-                        break;
-                    case BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED:
-                        getGattProfile(mBluetoothLeService.getSupportedGattServices());
-                        showConnectedState();
-                        if (isCorrectDevice) {
-                            // Enable the Fan Timer Control
-                            toggleFanTimerControl(true);
-                        }
-
+        public void onGattEvent(GattEvent event) {
+            if (mBluetoothLeService == null) {
+                return;
+            }
+            switch (event.getType()) {
+                case CONNECTED:
+                    break;
+                case DATA_AVAILABLE:
+                case CHARACTERISTIC_READ:
+                    // The service has already folded acknowledgements and timer values into the
+                    // countdown
+                    if (GattAttributes.CONTROL_ACKNOWLEDGE_UUID.equals(event.getCharacteristic())
+                            || GattAttributes.TIMER_VAL_UUID.equals(event.getCharacteristic())) {
+                        renderCountdown();
+                    }
+                    break;
+                case DISCONNECTED:
+                    // The controller keeps counting down without us
+                    if (!mCountdownShown)
+                        clearTimerDisplay();
+                    showDisconnectedState();
+                    toggleFanTimerControl(false);
+                    break;
+                case SERVICES_DISCOVERED:
+                    if (event.getStatus() != BluetoothGatt.GATT_SUCCESS) {
                         break;
-                }
+                    }
+                    StartupTrace.end(StartupTrace.CONNECT);
+                    getGattProfile(mBluetoothLeService.getSupportedGattServices(mBluetoothDevice.getAddress()));
+                    showConnectedState();
+                    if (isCorrectDevice && !mCountdownShown) {
+                        // Enable the Fan Timer Control
+                        toggleFanTimerControl(true);
+                    }
+                    renderCountdown();
+
+                    break;
+                default:
+                    break;
             }
         }
     };
@@ -148,16 +176,26 @@ public class DeviceDetailsActivity extends AppCompatActivity {
 
         longAnimationDuration = getResources().getInteger(
                 android.R.integer.config_longAnimTime);
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
 
+        // Started as well as bound, so the link outlives this screen and the next visit finds it warm
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        startService(gattServiceIntent);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+    protected void onStart() {
+        super.onStart();
+        attachToSession();
+        renderCountdown();
+    }
+
+    @Override
+    protected void onStop() {
+        // Nothing to keep ticking for, the controller has the timer
+        mCountdownDisplay.removeCallbacks(mRenderCountdown);
+        detachFromSession();
+        super.onStop();
     }
 
     @Override
@@ -170,12 +208,29 @@ public class DeviceDetailsActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
-        unregisterReceiver(mGattUpdateReceiver);
+        if (mBluetoothLeService != null) {
+            detachFromSession();
+            mBluetoothLeService.unregisterEventListener(mGattEventListener);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
         super.onDestroy();
     }
 
+    private void attachToSession() {
+        if (mBluetoothLeService != null && !mAttached) {
+            mBluetoothLeService.attach(mBluetoothDevice.getAddress());
+            mAttached = true;
+        }
+    }
+
+    private void detachFromSession() {
+        if (mBluetoothLeService != null && mAttached) {
+            mBluetoothLeService.detach(mBluetoothDevice.getAddress());
+            mAttached = false;
+        }
+    }
+
     /*
     * ALL UI RELATED FUNCTIONS GO HERE
     * **********************************************************************************************
@@ -243,20 +298,21 @@ public class DeviceDetailsActivity extends AppCompatActivity {
                 stopFanTimer();
                 clearTimerDisplay();
                 mStartTimerBttn.setEnabled(true);
+                // A command is about to follow, get the link ready for it
+                if (mBluetoothLeService != null) {
+                    mBluetoothLeService.noteInteraction(mBluetoothDevice.getAddress());
+                }
                 switch (view.getId()) {
                     case R.id.radio_bttn_twenty:
-                        mTimerCommandString = "rt3,FF,20,1\r\n";
-                        mTimerValue = 20*60;
+                        mTimerMinutes = ControlProtocol.TIMER_TWENTY;
                         mCountdownDisplay.setText(R.string.twenty);
                         break;
                     case R.id.radio_bttn_forty:
-                        mTimerCommandString = "rt3,FF,40,1\r\n";
-                        mTimerValue = 40*60;
+                        mTimerMinutes = ControlProtocol.TIMER_FORTY;
                         mCountdownDisplay.setText(R.string.forty);
                         break;
                     case R.id.radio_bttn_sixty:
-                        mTimerCommandString = "rt3,FF,60,1\r\n";
-                        mTimerValue = 60*60;
+                        mTimerMinutes = ControlProtocol.TIMER_SIXTY;
                         mCountdownDisplay.setText(R.string.sixty);
                         break;
                 }
@@ -265,59 +321,55 @@ public class DeviceDetailsActivity extends AppCompatActivity {
         });
     }
     public void startFanOverride(View view) {
-        isCountingDown = true;
-        writeToDevice(mTimerCommandString);
+        ControlProtocol.encodeTimerCommand(mCommandBuffer, 0, mTimerMinutes, mUnitId);
+        writeToDevice(mCommandBuffer);
         // Disable the Fan Timer Control
         toggleFanTimerControl(false);
     }
     public void stopFanOverride(View view) {
         // The function called when the 'Stop' button is pressed
-        isCountingDown = false;
-        mTimerCommandString = "rt3,FF,00,1\r\n";
+        mTimerMinutes = ControlProtocol.TIMER_OFF;
+        ControlProtocol.encodeTimerCommand(mCommandBuffer, 0, mTimerMinutes, mUnitId);
         // Send the stop command to the control unit - make sure the fan stops
-        writeToDevice(mTimerCommandString);
+        writeToDevice(mCommandBuffer);
         // Toggle the fan timer control on
         toggleFanTimerControl(true);
-        // Call the function responsible for cancelling the android timer object
+        // Stop redrawing the countdown
         stopFanTimer();
         // Clear the ticking timer display
         clearTimerDisplay();
     }
 
-    public void startFanTimer(int timerValue) {
-        // Called when the start timer acknowledgement is successful
-        if (mFanTimer == null) {
-            Log.i(LOG_TAG, "Instantiating new timer");
+    // Shows the controller's countdown, interpolated between its reports, and comes back when the
+    // displayed second changes. Formats into a reused char buffer, nothing is allocated per tick.
+    public void renderCountdown() {
+        mCountdownDisplay.removeCallbacks(mRenderCountdown);
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        FanCountdown countdown = mBluetoothLeService.getCountdown(mBluetoothDevice.getAddress());
+        long now = SystemClock.elapsedRealtime();
+        if (!countdown.isRunning(now)) {
+            if (mCountdownShown) {
+                // Ran out, or was stopped on the controller
+                BleLog.i(LOG_TAG, "Done");
+                stopFanTimer();
+                toggleFanTimerControl(true);
+                clearTimerDisplay();
+            }
+            return;
+        }
+        if (!mCountdownShown) {
+            mCountdownShown = true;
             toggleFanTimerControl(false);
-            mFanTimer = new CountDownTimer(timerValue*1000, 1000) {
-                @Override
-                public void onTick(long millisUntilFinished) {
-                    long secondsUntilFinished = millisUntilFinished / 1000;
-                    long minutes = secondsUntilFinished / 60;
-                    long seconds = secondsUntilFinished % 60;
-                    mCountdownDisplay.setText(String.format(Locale.CANADA, "%02d:%02d", minutes, seconds));
-                    Log.i(LOG_TAG, String.format(Locale.CANADA, "%02d:%02d", minutes, seconds));
-                }
-
-                @Override
-                public void onFinish() {
-                    // Disable the Remaining Time cancel button
-                    // Enable the Fan Timer Control
-                    Log.i(LOG_TAG, "Done");
-                    toggleFanTimerControl(true);
-                    clearTimerDisplay();
-                    mTimerValue = 0;
-                }
-            }.start();
         }
+        int length = countdown.format(mCountdownChars, now);
+        mCountdownDisplay.setText(mCountdownChars, 0, length);
+        mCountdownDisplay.postDelayed(mRenderCountdown, countdown.untilNextSecond(now));
     }
     public void stopFanTimer() {
-        if (mFanTimer != null) {
-            mFanTimer.cancel();
-            mFanTimer = null;
-            Log.i(LOG_TAG, "Made it null");
-        }
-        mTimerValue = 0;
+        mCountdownDisplay.removeCallbacks(mRenderCountdown);
+        mCountdownShown = false;
     }
     public void clearTimerDisplay() {
         mCountdownDisplay.setText(R.string.text_timer_blank);
@@ -335,41 +387,34 @@ public class DeviceDetailsActivity extends AppCompatActivity {
     public void disconnectDevice(View view) {
         if (mBluetoothLeService != null) {
             showDisconnectedState();
-            mBluetoothLeService.disconnect();
+            mBluetoothLeService.disconnect(mBluetoothDevice.getAddress());
         }
     }
 
     // Referencing the required profile (the services, characteristics, and descriptors)
     private void getGattProfile(List<BluetoothGattService> gattServices) {
-        for (BluetoothGattService gattService : gattServices) {
-            if (gattService.getUuid().equals(UUID.fromString(GattAttributes.HRV_CONTROL_SERV_UUID))) {
-                mMainService = gattService;
-                mControlInput = gattService.getCharacteristic(UUID.fromString(GattAttributes.HRV_CONTROL_CHAR_UUID));
-                mControlAcknowledgement = gattService.getCharacteristic(UUID.fromString(GattAttributes.CONTROL_ACKNOWLEDGE_UUID));
-                mBluetoothLeService.setCharacteristicNotification(mControlAcknowledgement, true);
-            }
+        if (gattServices == null) {
+            return;
+        }
+        HrvProfile profile = HrvProfile.resolve(gattServices);
+        mMainService = profile.getControlService();
+        mControlInput = profile.getControlInput();
+        mControlAcknowledgement = profile.getControlAcknowledgement();
+        if (mControlAcknowledgement != null) {
+            mBluetoothLeService.setCharacteristicNotification(
+                    mBluetoothDevice.getAddress(), mControlAcknowledgement, true);
         }
-        if (mMainService != null && mControlInput != null) {
+        if (profile.isComplete()) {
             isCorrectDevice = true;
         }
     }
 
     // No UI components. Can run within the service / work thread
-    public void writeToDevice(String str) {
+    public void writeToDevice(byte[] command) {
         if (mControlInput == null) {
             return;
         }
-        mBluetoothLeService.writeToCharacteristic(mControlInput, str);
-    }
-
-    // Just setting intent filter variables
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        filter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        filter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        filter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        return filter;
+        mBluetoothLeService.writeToCharacteristic(mBluetoothDevice.getAddress(), mControlInput, command);
     }
 
 }
@@ -0,0 +1,195 @@
+package com.avnan.blecontrollerapp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Everything measured about the link to one controller
+// Latencies are in microseconds. GATT status codes are counted individually (8 is a supervision
+// timeout, 133 the catch-all connection failure); the operation queue's own negative statuses
+// are counted separately. RSSI readings and notification arrivals are kept for the last
+// RSSI_HISTORY readings and RATE_WINDOW_SECONDS seconds respectively.
+// Recording is allocation free and thread safe. Android-free; times are elapsed-realtime
+// milliseconds unless stated otherwise.
+public class DeviceMetrics {
+    public static final int RSSI_HISTORY = 256;
+    public static final int RATE_WINDOW_SECONDS = 60;
+
+    private static final int STATUS_CODES = 256;
+
+    private final String mAddress;
+    // Direct connects only; background (autoConnect) links are left out
+    private final LatencyHistogram mConnectTime = new LatencyHistogram();
+    private final LatencyHistogram mDiscoveryTime = new LatencyHistogram();
+    private final LatencyHistogram mWriteToAck = new LatencyHistogram();
+    private final AtomicLongArray mGattErrors = new AtomicLongArray(STATUS_CODES);
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mRefused = new AtomicLong();
+    private final AtomicLong mMissingAcks = new AtomicLong();
+    private final AtomicLong mNotifications = new AtomicLong();
+
+    // Notifications per second, indexed by second modulo the window
+    private final long[] mRateSeconds = new long[RATE_WINDOW_SECONDS];
+    private final int[] mRateCounts = new int[RATE_WINDOW_SECONDS];
+
+    // Ring of RSSI readings
+    private final long[] mRssiTimes = new long[RSSI_HISTORY];
+    private final int[] mRssiValues = new int[RSSI_HISTORY];
+    private int mRssiNext;
+    private int mRssiCount;
+
+    public DeviceMetrics(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public LatencyHistogram getConnectTime() {
+        return mConnectTime;
+    }
+
+    public LatencyHistogram getDiscoveryTime() {
+        return mDiscoveryTime;
+    }
+
+    public LatencyHistogram getWriteToAck() {
+        return mWriteToAck;
+    }
+
+    // status is a GATT status or one of GattOperationQueue.STATUS_*. Success is not an error.
+    public void recordStatus(int status) {
+        if (status == GattOperationQueue.STATUS_SUCCESS) {
+            return;
+        }
+        if (status == GattOperationQueue.STATUS_TIMEOUT) {
+            mTimeouts.incrementAndGet();
+        } else if (status == GattOperationQueue.STATUS_REFUSED) {
+            mRefused.incrementAndGet();
+        } else if (status > 0) {
+            mGattErrors.incrementAndGet(Math.min(status, STATUS_CODES - 1));
+        }
+    }
+
+    public long getGattErrorCount(int status) {
+        return status > 0 && status < STATUS_CODES ? mGattErrors.get(status) : 0;
+    }
+
+    public long getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    public long getRefusedCount() {
+        return mRefused.get();
+    }
+
+    // A command that was never acknowledged
+    public void recordMissingAck() {
+        mMissingAcks.incrementAndGet();
+    }
+
+    public void recordMissingAcks(int count) {
+        if (count > 0) {
+            mMissingAcks.addAndGet(count);
+        }
+    }
+
+    public long getMissingAckCount() {
+        return mMissingAcks.get();
+    }
+
+    public synchronized void recordNotification(long now) {
+        mNotifications.incrementAndGet();
+        long second = now / 1000;
+        int slot = (int) (second % RATE_WINDOW_SECONDS);
+        if (mRateSeconds[slot] != second) {
+            mRateSeconds[slot] = second;
+            mRateCounts[slot] = 0;
+        }
+        mRateCounts[slot]++;
+    }
+
+    public long getNotificationCount() {
+        return mNotifications.get();
+    }
+
+    // Average notifications per second over the last seconds seconds (at most RATE_WINDOW_SECONDS)
+    public synchronized double getNotificationRate(long now, int seconds) {
+        seconds = Math.max(1, Math.min(seconds, RATE_WINDOW_SECONDS));
+        long current = now / 1000;
+        long total = 0;
+        for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+            if (current - mRateSeconds[i] < seconds && mRateSeconds[i] <= current) {
+                total += mRateCounts[i];
+            }
+        }
+        return (double) total / seconds;
+    }
+
+    public synchronized void recordRssi(long now, int rssi) {
+        mRssiTimes[mRssiNext] = now;
+        mRssiValues[mRssiNext] = rssi;
+        mRssiNext = (mRssiNext + 1) % RSSI_HISTORY;
+        if (mRssiCount < RSSI_HISTORY) {
+            mRssiCount++;
+        }
+    }
+
+    public synchronized int getRssiCount() {
+        return mRssiCount;
+    }
+
+    // Copies the readings, oldest first, into times and values. Returns how many were copied.
+    public synchronized int copyRssi(long[] times, int[] values) {
+        int count = Math.min(mRssiCount, Math.min(times.length, values.length));
+        int start = (mRssiNext - count + RSSI_HISTORY) % RSSI_HISTORY;
+        for (int i = 0; i < count; i++) {
+            int slot = (start + i) % RSSI_HISTORY;
+            times[i] = mRssiTimes[slot];
+            values[i] = mRssiValues[slot];
+        }
+        return count;
+    }
+
+    // Human and machine readable: one "key value..." line per metric
+    public void writeTo(Appendable out, long now) throws IOException {
+        out.append("device ").append(mAddress).append('\n');
+        writeHistogram(out, "connect_us", mConnectTime);
+        writeHistogram(out, "discovery_us", mDiscoveryTime);
+        writeHistogram(out, "write_to_ack_us", mWriteToAck);
+        out.append("missing_acks ").append(Long.toString(getMissingAckCount())).append('\n');
+        out.append("notifications ").append(Long.toString(getNotificationCount()))
+                .append(" rate_per_s ").append(Double.toString(getNotificationRate(now, RATE_WINDOW_SECONDS)))
+                .append('\n');
+        out.append("queue_timeouts ").append(Long.toString(getTimeoutCount()))
+                .append(" refused ").append(Long.toString(getRefusedCount())).append('\n');
+        for (int status = 1; status < STATUS_CODES; status++) {
+            long count = mGattErrors.get(status);
+            if (count != 0) {
+                out.append("gatt_status ").append(Integer.toString(status)).append(' ')
+                        .append(Long.toString(count)).append('\n');
+            }
+        }
+        long[] times = new long[RSSI_HISTORY];
+        int[] values = new int[RSSI_HISTORY];
+        int count = copyRssi(times, values);
+        for (int i = 0; i < count; i++) {
+            out.append("rssi ").append(Long.toString(times[i])).append(' ')
+                    .append(Integer.toString(values[i])).append('\n');
+        }
+    }
+
+    private static void writeHistogram(Appendable out, String name, LatencyHistogram histogram)
+            throws IOException {
+        out.append(name)
+                .append(" count ").append(Long.toString(histogram.getCount()))
+                .append(" min ").append(Long.toString(histogram.getMin()))
+                .append(" p50 ").append(Long.toString(histogram.getValueAtPercentile(50)))
+                .append(" p90 ").append(Long.toString(histogram.getValueAtPercentile(90)))
+                .append(" p99 ").append(Long.toString(histogram.getValueAtPercentile(99)))
+                .append(" max ").append(Long.toString(histogram.getMax()))
+                .append(" mean ").append(Long.toString(Math.round(histogram.getMean())))
+                .append('\n');
+    }
+}
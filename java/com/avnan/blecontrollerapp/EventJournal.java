@@ -0,0 +1,428 @@
+package com.avnan.blecontrollerapp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Append-only journal of what the app observed of its controllers, for audits after the fact
+// (who overrode the fan, and when) and for diagnosing units that keep dropping off.
+// Every record is RECORD_SIZE bytes, big endian:
+//    0 long   wall clock time, ms since the epoch
+//    8 long   device, the 48 bit address in the low bits (see deviceId)
+//   16 byte   TYPE_*
+//   17 byte   reserved, 0
+//   18 short  status, GATT status for RSSI and connection records
+//   20 int    value, meaning depends on the type
+//   24 int    extra, meaning depends on the type
+//   28 int    low 32 bits of the record's sequence number
+// Records go into segment files of at most segmentRecords records each, every one starting with
+// a header of the same size as a record. The oldest segments are deleted beyond maxSegments.
+// append() only copies the record into a staging buffer and may be called from any thread,
+// including Binder callbacks; flush() writes the staged records out through a FileChannel and
+// belongs on a background thread. When the staging buffer is full, records are dropped and
+// counted. Segments are synced to storage when they are finished and on close().
+// Thread safe. Android-free.
+public class EventJournal implements Closeable {
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_SEGMENT_RECORDS = 8192;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    public static final int DEFAULT_BUFFER_RECORDS = 1024;
+
+    // value = RSSI in dBm
+    public static final int TYPE_RSSI = 1;
+    // value = acknowledgement status, extra = write-to-ack latency in us or -1
+    public static final int TYPE_ACK = 2;
+    // value = new GattTransport.STATE_*
+    public static final int TYPE_CONNECTION = 3;
+    // value = timer minutes or -1 if not a timer command, extra = message type or -1;
+    // status = 0 if the command was queued, 1 if it was refused
+    public static final int TYPE_COMMAND = 4;
+
+    private static final int FILE_MAGIC = 0x45564a31; // "EVJ1"
+    private static final int FILE_VERSION = 1;
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".jnl";
+
+    private final File mDirectory;
+    private final int mSegmentRecords;
+    private final int mMaxSegments;
+
+    // Appenders fill mStaging; flush() moves it into mWriting, so appends only wait for a copy
+    // and never for the disk
+    private final Object mStagingLock = new Object();
+    private final ByteBuffer mStaging;
+    private final ByteBuffer mWriting;
+    private long mNextSequence;
+    private long mDropped;
+    private boolean mClosed;
+
+    // Writer side, guarded by this
+    private FileChannel mSegment;
+    private int mSegmentIndex;
+    private int mSegmentFill;
+    private boolean mOpened;
+
+    public EventJournal(File directory) {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_MAX_SEGMENTS, DEFAULT_BUFFER_RECORDS);
+    }
+
+    public EventJournal(File directory, int segmentRecords, int maxSegments, int bufferRecords) {
+        if (segmentRecords < 1 || maxSegments < 1 || bufferRecords < 1) {
+            throw new IllegalArgumentException("Invalid journal geometry");
+        }
+        mDirectory = directory;
+        mSegmentRecords = segmentRecords;
+        mMaxSegments = maxSegments;
+        mStaging = ByteBuffer.allocate(bufferRecords * RECORD_SIZE);
+        mWriting = ByteBuffer.allocateDirect(bufferRecords * RECORD_SIZE);
+    }
+
+    // Picks up where the last session stopped: a last segment with room left is appended to.
+    // Records appended before are kept and written after what is already on disk. Called once,
+    // on the writer thread.
+    public synchronized void open() throws IOException {
+        if (mOpened) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File[] segments = listSegments(mDirectory);
+        long next = 0;
+        if (segments.length > 0) {
+            File last = segments[segments.length - 1];
+            mSegmentIndex = indexOf(last);
+            int records = 0;
+            try (Reader reader = new Reader(new File[] {last})) {
+                while (reader.next()) {
+                    next = (reader.getSequence() & 0xffffffffL) + 1;
+                    records++;
+                }
+            } catch (IOException e) {
+                // Unreadable; left for whoever wants to look at it, and a new segment is begun
+                records = mSegmentRecords;
+            }
+            if (records < mSegmentRecords) {
+                FileChannel channel = new RandomAccessFile(last, "rw").getChannel();
+                // Drops a partial record a crash may have left at the end
+                long end = RECORD_SIZE + (long) records * RECORD_SIZE;
+                channel.truncate(end);
+                channel.position(end);
+                mSegment = channel;
+                mSegmentFill = records;
+            }
+        }
+        synchronized (mStagingLock) {
+            // Sequence numbers continue from disk; records already staged are renumbered
+            int staged = mStaging.position() / RECORD_SIZE;
+            for (int i = 0; i < staged; i++) {
+                mStaging.putInt(i * RECORD_SIZE + 28, (int) (next + i));
+            }
+            mNextSequence = next + staged;
+        }
+        mOpened = true;
+    }
+
+    // Stages one record. Never blocks on I/O. Returns false if the record was dropped because the
+    // staging buffer is full or the journal is closed.
+    public boolean append(int type, long time, String address, int status, int value, int extra) {
+        long device = deviceId(address);
+        synchronized (mStagingLock) {
+            if (mClosed || mStaging.remaining() < RECORD_SIZE) {
+                mDropped++;
+                return false;
+            }
+            mStaging.putLong(time)
+                    .putLong(device)
+                    .put((byte) type)
+                    .put((byte) 0)
+                    .putShort((short) status)
+                    .putInt(value)
+                    .putInt(extra)
+                    .putInt((int) mNextSequence++);
+        }
+        return true;
+    }
+
+    // Writes out everything staged so far, starting new segments as they fill up
+    public synchronized void flush() throws IOException {
+        if (!mOpened) {
+            return;
+        }
+        synchronized (mStagingLock) {
+            if (mStaging.position() == 0) {
+                return;
+            }
+            mWriting.clear();
+            mStaging.flip();
+            mWriting.put(mStaging);
+            mStaging.clear();
+        }
+        ByteBuffer batch = mWriting;
+        batch.flip();
+        while (batch.hasRemaining()) {
+            if (mSegment == null || mSegmentFill == mSegmentRecords) {
+                startSegment();
+            }
+            int records = Math.min(batch.remaining() / RECORD_SIZE, mSegmentRecords - mSegmentFill);
+            int limit = batch.limit();
+            batch.limit(batch.position() + records * RECORD_SIZE);
+            while (batch.hasRemaining()) {
+                mSegment.write(batch);
+            }
+            batch.limit(limit);
+            mSegmentFill += records;
+        }
+    }
+
+    // Flushes and syncs; later appends are dropped
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (mStagingLock) {
+                mClosed = true;
+            }
+            if (mSegment != null) {
+                try {
+                    mSegment.force(false);
+                } finally {
+                    mSegment.close();
+                    mSegment = null;
+                }
+            }
+        }
+    }
+
+    public long getDroppedCount() {
+        synchronized (mStagingLock) {
+            return mDropped;
+        }
+    }
+
+    // Segments on disk, oldest first. Records still staged are not in them yet.
+    public File[] getSegments() {
+        return listSegments(mDirectory);
+    }
+
+    // Reads every record flushed so far, oldest first
+    public Reader newReader() {
+        return new Reader(listSegments(mDirectory));
+    }
+
+    private void startSegment() throws IOException {
+        if (mSegment != null) {
+            mSegment.force(false);
+            mSegment.close();
+            mSegment = null;
+        }
+        mSegmentIndex++;
+        File file = new File(mDirectory, String.format("%s%010d%s", SEGMENT_PREFIX, mSegmentIndex, SEGMENT_SUFFIX));
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+            header.putInt(FILE_MAGIC)
+                    .putShort((short) FILE_VERSION)
+                    .putShort((short) RECORD_SIZE)
+                    .putLong(System.currentTimeMillis());
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        mSegment = channel;
+        mSegmentFill = 0;
+        File[] segments = listSegments(mDirectory);
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            if (!segments[i].delete()) {
+                throw new IOException("Unable to delete " + segments[i]);
+            }
+        }
+    }
+
+    private static File[] listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> segments = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (indexOf(file) > 0) {
+                segments.add(file);
+            }
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        // Zero padded indexes sort by name
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Index of a segment file, 0 if the file is not one
+    private static int indexOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Packs an address like 24:0A:C4:12:34:56 into a long without allocating; 0 if malformed
+    public static long deviceId(String address) {
+        if (address == null || address.length() != 17) {
+            return 0;
+        }
+        long device = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return 0;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return 0;
+            }
+            device = (device << 4) | digit;
+        }
+        return device;
+    }
+
+    public static String formatDevice(long device) {
+        StringBuilder address = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (device >>> shift) & 0xff;
+            address.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(octet & 0xf, 16)));
+            if (shift > 0) {
+                address.append(':');
+            }
+        }
+        return address.toString();
+    }
+
+    // Walks records segment by segment through one reusable buffer; the getters describe the
+    // record next() last moved to. A record cut short at the end of a segment, as a crash can
+    // leave behind, is skipped. Not thread safe.
+    public static final class Reader implements Closeable {
+        private static final int BUFFER_RECORDS = 2048;
+
+        private final File[] mSegments;
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+        private int mNextSegment;
+        private FileChannel mChannel;
+        private int mRecord = -1;
+
+        Reader(File[] segments) {
+            mSegments = segments;
+            mBuffer.limit(0);
+        }
+
+        public boolean next() throws IOException {
+            if (mRecord >= 0) {
+                mBuffer.position(mRecord + RECORD_SIZE);
+            }
+            while (mBuffer.remaining() < RECORD_SIZE) {
+                if (!fill()) {
+                    mRecord = -1;
+                    return false;
+                }
+            }
+            mRecord = mBuffer.position();
+            return true;
+        }
+
+        public long getTime() {
+            return mBuffer.getLong(mRecord);
+        }
+
+        public long getDevice() {
+            return mBuffer.getLong(mRecord + 8);
+        }
+
+        public int getType() {
+            return mBuffer.get(mRecord + 16);
+        }
+
+        public int getStatus() {
+            return mBuffer.getShort(mRecord + 18);
+        }
+
+        public int getValue() {
+            return mBuffer.getInt(mRecord + 20);
+        }
+
+        public int getExtra() {
+            return mBuffer.getInt(mRecord + 24);
+        }
+
+        // Low 32 bits of the sequence number
+        public int getSequence() {
+            return mBuffer.getInt(mRecord + 28);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
+            }
+        }
+
+        // Tops up the buffer from the current segment or moves to the next one. Returns false
+        // once every segment has been read.
+        private boolean fill() throws IOException {
+            if (mChannel != null) {
+                mBuffer.compact();
+                int read = mChannel.read(mBuffer);
+                mBuffer.flip();
+                if (read > 0) {
+                    return true;
+                }
+                // A partial record left at the end of the segment
+                mBuffer.limit(0);
+                mChannel.close();
+                mChannel = null;
+            }
+            if (mNextSegment == mSegments.length) {
+                return false;
+            }
+            File segment = mSegments[mNextSegment++];
+            mChannel = new FileInputStream(segment).getChannel();
+            mBuffer.clear();
+            mBuffer.limit(RECORD_SIZE);
+            while (mBuffer.hasRemaining()) {
+                if (mChannel.read(mBuffer) < 0) {
+                    close();
+                    throw new EOFException("Truncated header in " + segment);
+                }
+            }
+            if (mBuffer.getInt(0) != FILE_MAGIC || mBuffer.getShort(4) != FILE_VERSION
+                    || mBuffer.getShort(6) != RECORD_SIZE) {
+                close();
+                throw new IOException("Not a journal segment: " + segment);
+            }
+            mBuffer.limit(0);
+            mRecord = -1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.avnan.blecontrollerapp;
+
+// The fan timer of one controller, as the controller reports it
+// The controller owns the timer and exposes the remaining seconds on its timer characteristic
+// (ASCII decimal). Every report anchors the time the timer ends; between reports the remaining
+// time is worked out from that anchor, so nothing has to tick while no one is looking and a
+// screen that comes back after a rotation or a reconnect picks up where the controller is.
+// Reports are whole seconds, so one that agrees with the anchor to within TOLERANCE_MS leaves it
+// alone instead of making the display jump back and forth.
+// Until the controller has reported, an acknowledged command stands in for it.
+// Thread safe. Android-free; times are elapsed-realtime milliseconds.
+public class FanCountdown {
+    // MM:SS
+    public static final int DISPLAY_LENGTH = 5;
+
+    private static final long TOLERANCE_MS = 1000;
+
+    // When the timer runs out, 0 if it is not running
+    private long mEndsAt;
+    // Length of the last command sent, until it is acknowledged; -1 if none
+    private int mPendingSeconds = -1;
+    private long mLastReport;
+
+    // A timer command went out. Stopping shows at once, starting waits for the acknowledgement.
+    public synchronized void onCommandSent(int minutes) {
+        if (minutes == 0) {
+            mEndsAt = 0;
+            mPendingSeconds = -1;
+        } else {
+            mPendingSeconds = minutes * 60;
+        }
+    }
+
+    public synchronized void onCommandAccepted(long now) {
+        if (mPendingSeconds > 0) {
+            mEndsAt = now + mPendingSeconds * 1000L;
+        }
+        mPendingSeconds = -1;
+    }
+
+    public synchronized void onControllerValue(int seconds, long now) {
+        mLastReport = now;
+        if (seconds <= 0) {
+            mEndsAt = 0;
+            return;
+        }
+        long reportedEnd = now + seconds * 1000L;
+        if (mEndsAt == 0 || Math.abs(mEndsAt - reportedEnd) > TOLERANCE_MS) {
+            mEndsAt = reportedEnd;
+        }
+    }
+
+    public synchronized void clear() {
+        mEndsAt = 0;
+        mPendingSeconds = -1;
+    }
+
+    public synchronized boolean isRunning(long now) {
+        return mEndsAt > now;
+    }
+
+    public synchronized long getRemainingMillis(long now) {
+        return mEndsAt > now ? mEndsAt - now : 0;
+    }
+
+    // When the controller last reported, 0 if it never has
+    public synchronized long getLastReport() {
+        return mLastReport;
+    }
+
+    // How long until the displayed second changes
+    public synchronized long untilNextSecond(long now) {
+        long remainder = getRemainingMillis(now) % 1000;
+        return remainder == 0 ? 1000 : remainder;
+    }
+
+    // Writes the remaining time as MM:SS into dst, rounded up to the second so the display only
+    // reads 00:00 once the timer has run out. Returns the number of chars written.
+    public synchronized int format(char[] dst, long now) {
+        long seconds = (getRemainingMillis(now) + 999) / 1000;
+        long minutes = Math.min(99, seconds / 60);
+        seconds = minutes == 99 ? Math.min(59, seconds - 99 * 60) : seconds % 60;
+        dst[0] = (char) ('0' + minutes / 10);
+        dst[1] = (char) ('0' + minutes % 10);
+        dst[2] = ':';
+        dst[3] = (char) ('0' + seconds / 10);
+        dst[4] = (char) ('0' + seconds % 10);
+        return DISPLAY_LENGTH;
+    }
+
+    // Parses the timer characteristic in place. Trailing whitespace and NULs, as the firmware
+    // may pad the value with, are ignored. Returns -1 if the value is not a number of seconds.
+    public static int parseSeconds(byte[] value, int length) {
+        if (value == null) {
+            return -1;
+        }
+        int end = Math.min(length, value.length);
+        while (end > 0 && (value[end - 1] == 0 || value[end - 1] == ' '
+                || value[end - 1] == '\r' || value[end - 1] == '\n')) {
+            end--;
+        }
+        if (end == 0 || end > 9) {
+            return -1;
+        }
+        int seconds = 0;
+        for (int i = 0; i < end; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            seconds = seconds * 10 + digit;
+        }
+        return seconds;
+    }
+}
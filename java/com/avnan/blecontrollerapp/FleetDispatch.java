@@ -0,0 +1,405 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Sends one command to many controllers and collects what each of them answered
+// Devices are worked on in parallel, at most maxParallel at a time (the number of links the
+// adapter can hold). For each one the link is brought up, the command written, and the
+// acknowledgement awaited. An attempt that times out or loses its link is retried after a short
+// pause, up to the retry limit; a controller that acknowledges with anything but "accepted" is
+// not asked again. Links the dispatch had to open are handed back when it is done with them.
+// Driven by the GattEvents of the owner's event bus. Thread safe. Android-free.
+public class FleetDispatch implements GattEventBus.Listener {
+    public static final int DEFAULT_RETRIES = 2;
+    public static final long DEFAULT_ATTEMPT_TIMEOUT_MS = 20000;
+    private static final long RETRY_PAUSE_MS = 500;
+
+    // Outcome of one device
+    public static final int PENDING = 0;
+    public static final int ACCEPTED = 1;
+    // Acknowledged with a status other than accepted
+    public static final int REJECTED = 2;
+    // Every attempt failed or timed out
+    public static final int FAILED = 3;
+    public static final int CANCELLED = 4;
+
+    // What the dispatch needs from the link owner
+    public interface Port {
+        // Starts bringing the link up. Returns false if that was refused.
+        boolean connect(String address);
+
+        // Whether the link is up with its services resolved
+        boolean isReady(String address);
+
+        // Writes command to the control characteristic, with acknowledgements enabled. Returns
+        // false if the link cannot take it.
+        boolean send(String address, byte[] command);
+
+        // The dispatch is done with the device. opened is true if the link was opened for it.
+        void release(String address, boolean opened);
+
+        void onDispatchFinished(FleetDispatch dispatch);
+    }
+
+    public interface Callback {
+        // index is the device's position in the dispatch
+        void onDeviceFinished(Result result, int index);
+
+        void onFinished(Result result);
+    }
+
+    // Per device outcomes, in the order the addresses were given. Values read while the dispatch
+    // runs are a snapshot in progress.
+    public static final class Result {
+        private final String[] mAddresses;
+        private final int[] mOutcomes;
+        private final int[] mAttempts;
+        private final int[] mAckStatus;
+        // From the first attempt to the acknowledgement, and from the write to it
+        private final long[] mLatencyMillis;
+        private final long[] mAckLatencyMicros;
+
+        Result(List<String> addresses) {
+            int count = addresses.size();
+            mAddresses = addresses.toArray(new String[count]);
+            mOutcomes = new int[count];
+            mAttempts = new int[count];
+            mAckStatus = new int[count];
+            mLatencyMillis = new long[count];
+            mAckLatencyMicros = new long[count];
+            for (int i = 0; i < count; i++) {
+                mAckStatus[i] = ControlProtocol.NOT_AN_ACK;
+                mLatencyMillis[i] = -1;
+                mAckLatencyMicros[i] = -1;
+            }
+        }
+
+        public synchronized int size() {
+            return mAddresses.length;
+        }
+
+        public synchronized String getAddress(int index) {
+            return mAddresses[index];
+        }
+
+        public synchronized int getOutcome(int index) {
+            return mOutcomes[index];
+        }
+
+        public synchronized int getAttempts(int index) {
+            return mAttempts[index];
+        }
+
+        // The status the controller acknowledged with, or ControlProtocol.NOT_AN_ACK
+        public synchronized int getAckStatus(int index) {
+            return mAckStatus[index];
+        }
+
+        // -1 if the device never acknowledged
+        public synchronized long getLatencyMillis(int index) {
+            return mLatencyMillis[index];
+        }
+
+        public synchronized long getAckLatencyMicros(int index) {
+            return mAckLatencyMicros[index];
+        }
+
+        public synchronized int count(int outcome) {
+            int count = 0;
+            for (int value : mOutcomes) {
+                if (value == outcome) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static final class Device {
+        final int mIndex;
+        boolean mOpened;
+        boolean mSent;
+        long mFirstStarted;
+        long mSentAt;
+        ScheduledFuture<?> mTimeout;
+
+        Device(int index) {
+            mIndex = index;
+        }
+    }
+
+    private final Result mResult;
+    private final byte[] mCommand;
+    private final int mMaxParallel;
+    private final Port mPort;
+    private final ScheduledExecutorService mTimer;
+    private final Callback mCallback;
+    private final Executor mExecutor;
+    private int mRetries = DEFAULT_RETRIES;
+    private long mAttemptTimeout = DEFAULT_ATTEMPT_TIMEOUT_MS;
+
+    // Devices in flight by address
+    private final HashMap<String, Device> mActive = new HashMap<>();
+    private int mNext;
+    private int mFinished;
+    private boolean mStarted;
+    private boolean mDone;
+
+    // The command is copied. Duplicate addresses are only dispatched to once.
+    public FleetDispatch(List<String> addresses, byte[] command, int maxParallel, Port port,
+                         ScheduledExecutorService timer, Callback callback, Executor executor) {
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("Need at least one link");
+        }
+        List<String> unique = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            if (!unique.contains(address)) {
+                unique.add(address);
+            }
+        }
+        mResult = new Result(unique);
+        mCommand = command.clone();
+        mMaxParallel = maxParallel;
+        mPort = port;
+        mTimer = timer;
+        mCallback = callback;
+        mExecutor = executor;
+    }
+
+    // Only before start()
+    public synchronized void setRetries(int retries, long attemptTimeoutMillis) {
+        if (retries < 0 || attemptTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        mRetries = retries;
+        mAttemptTimeout = attemptTimeoutMillis;
+    }
+
+    public Result getResult() {
+        return mResult;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+        }
+        fill();
+    }
+
+    // Devices not finished yet end up CANCELLED
+    public void cancel() {
+        List<Device> cancelled;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            cancelled = new ArrayList<>(mActive.values());
+            mActive.clear();
+            while (mNext < mResult.size()) {
+                setOutcome(mNext++, CANCELLED);
+                mFinished++;
+            }
+        }
+        for (Device device : cancelled) {
+            finish(device, CANCELLED);
+        }
+    }
+
+    @Override
+    public void onGattEvent(GattEvent event) {
+        String address = event.getAddress();
+        switch (event.getType()) {
+            case SERVICES_DISCOVERED:
+                if (event.getStatus() == GattTransport.GATT_SUCCESS) {
+                    onReady(address);
+                }
+                break;
+            case DISCONNECTED:
+                onAttemptFailed(address);
+                break;
+            case DATA_AVAILABLE:
+                if (GattAttributes.CONTROL_ACKNOWLEDGE_UUID.equals(event.getCharacteristic())) {
+                    byte[] value = event.getValue();
+                    int status = ControlProtocol.decodeAcknowledgement(value, 0, value.length);
+                    if (status != ControlProtocol.NOT_AN_ACK) {
+                        onAcknowledged(address, status);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Starts devices until maxParallel are in flight
+    private void fill() {
+        while (true) {
+            Device device;
+            String address;
+            synchronized (this) {
+                if (mDone || mActive.size() >= mMaxParallel || mNext >= mResult.size()) {
+                    break;
+                }
+                device = new Device(mNext++);
+                address = mResult.getAddress(device.mIndex);
+                device.mOpened = !mPort.isReady(address);
+                device.mFirstStarted = System.nanoTime();
+                mActive.put(address, device);
+            }
+            attempt(address, device);
+        }
+        checkDone();
+    }
+
+    private void attempt(final String address, final Device device) {
+        boolean ready;
+        synchronized (this) {
+            if (mActive.get(address) != device) {
+                return;
+            }
+            synchronized (mResult) {
+                mResult.mAttempts[device.mIndex]++;
+            }
+            device.mSent = false;
+            device.mTimeout = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onAttemptFailed(address);
+                }
+            }, mAttemptTimeout, TimeUnit.MILLISECONDS);
+            ready = mPort.isReady(address);
+        }
+        if (ready) {
+            onReady(address);
+        } else if (!mPort.connect(address)) {
+            onAttemptFailed(address);
+        }
+    }
+
+    private void onReady(String address) {
+        synchronized (this) {
+            Device device = mActive.get(address);
+            if (device == null || device.mSent) {
+                return;
+            }
+            device.mSent = true;
+            device.mSentAt = System.nanoTime();
+        }
+        if (!mPort.send(address, mCommand)) {
+            onAttemptFailed(address);
+        }
+    }
+
+    private void onAcknowledged(String address, int status) {
+        Device device;
+        synchronized (this) {
+            device = mActive.get(address);
+            if (device == null || !device.mSent) {
+                return;
+            }
+            mActive.remove(address);
+            long now = System.nanoTime();
+            synchronized (mResult) {
+                mResult.mAckStatus[device.mIndex] = status;
+                mResult.mLatencyMillis[device.mIndex] = (now - device.mFirstStarted) / 1000000;
+                mResult.mAckLatencyMicros[device.mIndex] = (now - device.mSentAt) / 1000;
+            }
+        }
+        finish(device, status == ControlProtocol.ACK_ACCEPTED ? ACCEPTED : REJECTED);
+        fill();
+    }
+
+    private void onAttemptFailed(final String address) {
+        final Device device;
+        boolean retry;
+        synchronized (this) {
+            device = mActive.get(address);
+            if (device == null) {
+                return;
+            }
+            cancelTimeout(device);
+            retry = mResult.getAttempts(device.mIndex) <= mRetries;
+            if (!retry) {
+                mActive.remove(address);
+            } else {
+                // Held back until the retry, so a late event of this attempt finds nothing to do
+                device.mSent = true;
+            }
+        }
+        if (retry) {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(address, device);
+                }
+            }, RETRY_PAUSE_MS * mResult.getAttempts(device.mIndex), TimeUnit.MILLISECONDS);
+            return;
+        }
+        finish(device, FAILED);
+        fill();
+    }
+
+    private void finish(final Device device, int outcome) {
+        String address;
+        synchronized (this) {
+            cancelTimeout(device);
+            setOutcome(device.mIndex, outcome);
+            mFinished++;
+            address = mResult.getAddress(device.mIndex);
+        }
+        mPort.release(address, device.mOpened);
+        if (mCallback != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onDeviceFinished(mResult, device.mIndex);
+                }
+            });
+        }
+        checkDone();
+    }
+
+    private void checkDone() {
+        synchronized (this) {
+            if (mDone || mFinished < mResult.size()) {
+                return;
+            }
+            mDone = true;
+        }
+        mPort.onDispatchFinished(this);
+        if (mCallback != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onFinished(mResult);
+                }
+            });
+        }
+    }
+
+    private void setOutcome(int index, int outcome) {
+        synchronized (mResult) {
+            mResult.mOutcomes[index] = outcome;
+        }
+    }
+
+    private static void cancelTimeout(Device device) {
+        if (device.mTimeout != null) {
+            device.mTimeout.cancel(false);
+            device.mTimeout = null;
+        }
+    }
+}
@@ -1,29 +1,55 @@
 package com.avnan.blecontrollerapp;
 
-import java.util.HashMap;
+import java.util.UUID;
 
 public class GattAttributes {
-    private static HashMap<String, String> attributes = new HashMap();
+    // IDs handed out by the registry, used to switch on attributes without comparing UUIDs
+    public static final int ID_HRV_CONTROL_SERVICE = 1;
+    public static final int ID_DEVICE_INFORMATION_SERVICE = 2;
+    public static final int ID_HRV_CONTROL_CHARACTERISTIC = 3;
+    public static final int ID_CONTROL_ACKNOWLEDGE = 4;
+    public static final int ID_TIMER_VALUE = 5;
+    public static final int ID_FIRMWARE_REVISION = 6;
+    // Vendor profiles registered at runtime should use IDs from here up
+    public static final int FIRST_VENDOR_ID = 1000;
+
     // Services
-    public static String HRV_CONTROL_SERV_UUID = "4fafc201-1fb5-459e-8fcc-c5c9c331914b";
+    public static final UUID HRV_CONTROL_SERV_UUID = UUID.fromString("4fafc201-1fb5-459e-8fcc-c5c9c331914b");
+    public static final UUID DEVICE_INFORMATION_SERV_UUID = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
     // Characteristics
-    public static String HRV_CONTROL_CHAR_UUID = "beb5483e-36e1-4688-b7f5-ea07361b26a8";
-    public static String CONTROL_ACKNOWLEDGE_UUID = "beb5483e-36e1-4688-b7f5-ea07361b26a9";
-    public static String TIMER_VAL_UUID = "beb5483e-36e1-4688-b7f5-ea07361b26aa";
+    public static final UUID HRV_CONTROL_CHAR_UUID = UUID.fromString("beb5483e-36e1-4688-b7f5-ea07361b26a8");
+    public static final UUID CONTROL_ACKNOWLEDGE_UUID = UUID.fromString("beb5483e-36e1-4688-b7f5-ea07361b26a9");
+    public static final UUID TIMER_VAL_UUID = UUID.fromString("beb5483e-36e1-4688-b7f5-ea07361b26aa");
+    public static final UUID FIRMWARE_REVISION_UUID = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
     // Descriptors
 
+    private static final UuidRegistry attributes = new UuidRegistry();
+
     static {
         // Services
-        attributes.put(HRV_CONTROL_SERV_UUID, "HRV Control Service");
+        attributes.register(HRV_CONTROL_SERV_UUID, ID_HRV_CONTROL_SERVICE, "HRV Control Service");
+        attributes.register(DEVICE_INFORMATION_SERV_UUID, ID_DEVICE_INFORMATION_SERVICE, "Device Information Service");
         // Characteristics
-        attributes.put(HRV_CONTROL_CHAR_UUID, "HRV Control Characteristic");
-        attributes.put(CONTROL_ACKNOWLEDGE_UUID, "Control Input Acknowledgement");
-        attributes.put(TIMER_VAL_UUID, "Countdown Timer Value");
+        attributes.register(HRV_CONTROL_CHAR_UUID, ID_HRV_CONTROL_CHARACTERISTIC, "HRV Control Characteristic");
+        attributes.register(CONTROL_ACKNOWLEDGE_UUID, ID_CONTROL_ACKNOWLEDGE, "Control Input Acknowledgement");
+        attributes.register(TIMER_VAL_UUID, ID_TIMER_VALUE, "Countdown Timer Value");
+        attributes.register(FIRMWARE_REVISION_UUID, ID_FIRMWARE_REVISION, "Firmware Revision String");
+    }
+
+    // Adds attributes of another vendor's profile so they resolve like the built-in ones
+    public static void register(UUID uuid, int id, String name) {
+        if (id < FIRST_VENDOR_ID) {
+            throw new IllegalArgumentException("Vendor attribute IDs start at " + FIRST_VENDOR_ID);
+        }
+        attributes.register(uuid, id, name);
+    }
+
+    public static int idOf(UUID uuid) {
+        return attributes.idOf(uuid);
     }
 
-    public static String lookup(String uuid, String defaultName) {
-        String name = attributes.get(uuid);
-        return name == null ? defaultName : name;
+    public static String lookup(UUID uuid, String defaultName) {
+        return attributes.nameOf(uuid, defaultName);
     }
 
 }
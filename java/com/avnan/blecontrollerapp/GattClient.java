@@ -0,0 +1,54 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.UUID;
+
+// The subset of BluetoothGatt the operation queue needs, addressed by UUID instead of by
+// framework objects. The app implements it on top of BluetoothGatt (AndroidGattClient); anything
+// else, such as a fake peripheral on the JVM, can implement it too.
+//
+// Every method only starts an operation. Completion is reported later through the matching
+// BluetoothGattCallback method, which must be forwarded to GattOperationQueue.onOperationComplete.
+// Implementations must not report completion from inside the call that started the operation.
+public interface GattClient {
+    // Same values as BluetoothGattCharacteristic.WRITE_TYPE_*
+    int WRITE_TYPE_NO_RESPONSE = 1;
+    int WRITE_TYPE_DEFAULT = 2;
+
+    // Same values as BluetoothGatt.CONNECTION_PRIORITY_*
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    // Same values as BluetoothDevice.PHY_LE_*_MASK
+    int PHY_LE_1M_MASK = 1;
+    int PHY_LE_2M_MASK = 2;
+
+    // Results of setCharacteristicNotification
+    int NOTIFICATION_FAILED = 0;
+    // The Client Characteristic Configuration descriptor is being written, wait for its callback
+    int NOTIFICATION_PENDING = 1;
+    // Nothing to write on the peripheral, the change took effect immediately
+    int NOTIFICATION_SET = 2;
+
+    boolean discoverServices();
+
+    boolean readCharacteristic(UUID service, UUID characteristic);
+
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType);
+
+    int setCharacteristicNotification(UUID service, UUID characteristic, boolean enable);
+
+    boolean readRemoteRssi();
+
+    // Asks for a larger ATT MTU. The peripheral may settle on less; the result arrives in
+    // onMtuChanged.
+    boolean requestMtu(int mtu);
+
+    // The two link tuning calls are not operations: they do not contend with the one operation in
+    // flight and are not serialized by the queue. A PHY change is reported in onPhyUpdate, a
+    // connection priority change only through the stack's connection update.
+    boolean requestConnectionPriority(int priority);
+
+    // Returns false if the platform cannot choose a PHY
+    boolean setPreferredPhy(int phyMask);
+}
@@ -0,0 +1,221 @@
+package com.avnan.blecontrollerapp;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// One GATT link owned by BluetoothLeService: the transport's link, its operation queue and the
+// connection state machine
+//
+//   DISCONNECTED -> CONNECTING -> DISCOVERING -> READY
+//         ^              |             |           |
+//         +--------------+-------------+-----------+-- (link lost)
+//   CONNECTING / DISCOVERING / READY -> DISCONNECTING -> DISCONNECTED   (our request)
+public class GattConnection implements ConnectionPool.Member {
+    // ATT MTU every link starts with
+    public static final int DEFAULT_MTU = 23;
+    // A command not acknowledged within this long is counted as never acknowledged
+    public static final long ACK_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(10);
+
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        // Link is up, services are being discovered
+        DISCOVERING,
+        // Services discovered, ready for commands
+        READY,
+        DISCONNECTING;
+
+        boolean canMoveTo(State next) {
+            switch (this) {
+                case DISCONNECTED:
+                    return next == CONNECTING;
+                case CONNECTING:
+                    return next == DISCOVERING || next == DISCONNECTING || next == DISCONNECTED;
+                case DISCOVERING:
+                    return next == READY || next == DISCONNECTING || next == DISCONNECTED;
+                case READY:
+                    return next == DISCOVERING || next == DISCONNECTING || next == DISCONNECTED;
+                case DISCONNECTING:
+                    return next == DISCONNECTED;
+                default:
+                    return false;
+            }
+        }
+
+        public boolean isConnected() {
+            return this == DISCOVERING || this == READY;
+        }
+    }
+
+    private final String mAddress;
+    private final GattTransport.Link mLink;
+    private final GattOperationQueue mQueue;
+    private final CommandStream mCommandStream;
+    // Opened with autoConnect, i.e. waiting for the device to come back into range
+    private final boolean mBackground;
+    private final long mCreatedAt;
+    private State mState = State.DISCONNECTED;
+    private long mLastActivity;
+    private long mConnectLatency = -1;
+    private int mMtu = DEFAULT_MTU;
+    private final LinkProfileSelector mLinkSelector = new LinkProfileSelector();
+    private LinkParameters mLinkParameters = LinkParameters.UNKNOWN;
+    // Pending re-evaluation of the link profile
+    private ScheduledFuture<?> mLinkCheck;
+    private ScheduledFuture<?> mRssiPoll;
+    // SystemClock.elapsedRealtimeNanos() of the running discovery, 0 if none
+    private long mDiscoveryStarted;
+    // Commands sent on this link that have not been acknowledged yet
+    private final AckTracker mAcks = new AckTracker(ACK_TIMEOUT_NS);
+
+    public GattConnection(String address, GattTransport.Link link, boolean background,
+                          ScheduledExecutorService timer) {
+        mAddress = address;
+        mLink = link;
+        mBackground = background;
+        mQueue = new GattOperationQueue(link, timer);
+        mCommandStream = new CommandStream(mQueue);
+        mCreatedAt = SystemClock.elapsedRealtime();
+        touch();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public GattTransport.Link getLink() {
+        return mLink;
+    }
+
+    public GattOperationQueue getQueue() {
+        return mQueue;
+    }
+
+    public CommandStream getCommandStream() {
+        return mCommandStream;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public void setMtu(int mtu) {
+        synchronized (this) {
+            mMtu = mtu;
+        }
+        // 3 bytes of every packet are the ATT header
+        mCommandStream.setMaxPayload(mtu - 3);
+    }
+
+    public LinkProfileSelector getLinkSelector() {
+        return mLinkSelector;
+    }
+
+    public synchronized LinkParameters getLinkParameters() {
+        return mLinkParameters;
+    }
+
+    // Asks the stack for profile's timing. Returns false if the link is already on it.
+    public boolean applyLinkProfile(LinkProfile profile) {
+        synchronized (this) {
+            if (mLinkParameters.getProfile() == profile) {
+                return false;
+            }
+            mLinkParameters = mLinkParameters.withProfile(profile);
+        }
+        mLink.requestConnectionPriority(profile.getConnectionPriority());
+        mLink.setPreferredPhy(profile.getPhyMask());
+        return true;
+    }
+
+    public synchronized void onConnectionUpdated(int interval, int latency, int supervisionTimeout) {
+        mLinkParameters = mLinkParameters.withConnectionParameters(interval, latency, supervisionTimeout);
+    }
+
+    public synchronized void onPhyUpdated(int txPhy, int rxPhy) {
+        mLinkParameters = mLinkParameters.withPhy(txPhy, rxPhy);
+    }
+
+    // Replaces the pending link profile check; null just cancels it
+    public synchronized void setLinkCheck(ScheduledFuture<?> check) {
+        if (mLinkCheck != null) {
+            mLinkCheck.cancel(false);
+        }
+        mLinkCheck = check;
+    }
+
+    public synchronized void setRssiPoll(ScheduledFuture<?> poll) {
+        if (mRssiPoll != null) {
+            mRssiPoll.cancel(false);
+        }
+        mRssiPoll = poll;
+    }
+
+    public synchronized void markDiscoveryStarted() {
+        mDiscoveryStarted = SystemClock.elapsedRealtimeNanos();
+    }
+
+    // Returns how long discovery took in microseconds, or -1 if none was running
+    public synchronized long takeDiscoveryTime() {
+        if (mDiscoveryStarted == 0) {
+            return -1;
+        }
+        long micros = (SystemClock.elapsedRealtimeNanos() - mDiscoveryStarted) / 1000;
+        mDiscoveryStarted = 0;
+        return micros;
+    }
+
+    // Times are SystemClock.elapsedRealtimeNanos()
+    public AckTracker getAckTracker() {
+        return mAcks;
+    }
+
+    public boolean isBackground() {
+        return mBackground;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    // Returns false and leaves the state alone if the transition is not allowed
+    public synchronized boolean moveTo(State next) {
+        if (mState == next) {
+            return true;
+        }
+        if (!mState.canMoveTo(next)) {
+            return false;
+        }
+        if (mState == State.CONNECTING && next == State.DISCOVERING) {
+            mConnectLatency = SystemClock.elapsedRealtime() - mCreatedAt;
+        }
+        mState = next;
+        return true;
+    }
+
+    // Time from opening the link to it coming up, or -1 if it has not come up
+    public synchronized long getConnectLatency() {
+        return mConnectLatency;
+    }
+
+    public synchronized void touch() {
+        mLastActivity = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized long getLastActivity() {
+        return mLastActivity;
+    }
+
+    // A background connection attempt may go on for hours, so it does not hold on to its slot
+    @Override
+    public synchronized boolean isIdle() {
+        if (mState == State.CONNECTING) {
+            return mBackground;
+        }
+        return (mState == State.READY || mState == State.DISCONNECTED) && mQueue.isIdle()
+                && mCommandStream.isIdle();
+    }
+}
@@ -0,0 +1,120 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+// Something that happened on a GATT link, as delivered by GattEventBus
+// Fields that do not apply to a type are null (characteristic, value) or 0 (rssi, timestamp).
+// status is the GATT status the stack reported, 0 (GATT_SUCCESS) for events that have none.
+// Immutable; value is copied out of the characteristic when the event is created. Android-free.
+public final class GattEvent {
+    public enum Type {
+        CONNECTED,
+        // status is the reason the link went down
+        DISCONNECTED,
+        SERVICES_DISCOVERED,
+        // A notification or indication; characteristic and value are set
+        DATA_AVAILABLE,
+        CHARACTERISTIC_READ,
+        CHARACTERISTIC_WRITE,
+        RSSI_READ,
+        // The connection interval or PHY changed, see BluetoothLeService.getLinkParameters
+        LINK_UPDATED
+    }
+
+    private final Type mType;
+    private final String mAddress;
+    private final UUID mCharacteristic;
+    private final byte[] mValue;
+    private final int mRssi;
+    private final int mStatus;
+    private final long mTimestampNanos;
+
+    private GattEvent(Type type, String address, UUID characteristic, byte[] value, int rssi, int status) {
+        this(type, address, characteristic, value, rssi, status, 0);
+    }
+
+    private GattEvent(Type type, String address, UUID characteristic, byte[] value, int rssi, int status,
+                      long timestampNanos) {
+        mType = type;
+        mAddress = address;
+        mCharacteristic = characteristic;
+        mValue = value;
+        mRssi = rssi;
+        mStatus = status;
+        mTimestampNanos = timestampNanos;
+    }
+
+    public static GattEvent connected(String address) {
+        return new GattEvent(Type.CONNECTED, address, null, null, 0, 0);
+    }
+
+    public static GattEvent disconnected(String address, int status) {
+        return new GattEvent(Type.DISCONNECTED, address, null, null, 0, status);
+    }
+
+    public static GattEvent servicesDiscovered(String address, int status) {
+        return new GattEvent(Type.SERVICES_DISCOVERED, address, null, null, 0, status);
+    }
+
+    // The first length bytes of value, received at timestampNanos (SystemClock.elapsedRealtimeNanos)
+    public static GattEvent dataAvailable(String address, UUID characteristic, byte[] value, int length,
+                                          long timestampNanos) {
+        return new GattEvent(Type.DATA_AVAILABLE, address, characteristic, Arrays.copyOf(value, length), 0, 0,
+                timestampNanos);
+    }
+
+    public static GattEvent characteristicRead(String address, UUID characteristic, byte[] value, int status) {
+        return new GattEvent(Type.CHARACTERISTIC_READ, address, characteristic, copyOf(value), 0, status);
+    }
+
+    public static GattEvent characteristicWrite(String address, UUID characteristic, int status) {
+        return new GattEvent(Type.CHARACTERISTIC_WRITE, address, characteristic, null, 0, status);
+    }
+
+    public static GattEvent rssiRead(String address, int rssi, int status) {
+        return new GattEvent(Type.RSSI_READ, address, null, null, rssi, status);
+    }
+
+    public static GattEvent linkUpdated(String address, int status) {
+        return new GattEvent(Type.LINK_UPDATED, address, null, null, 0, status);
+    }
+
+    private static byte[] copyOf(byte[] value) {
+        return value == null ? null : value.clone();
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    // Not copied again; listeners must not modify it
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    @Override
+    public String toString() {
+        return mType + " " + mAddress + (mStatus != 0 ? " status " + mStatus : "");
+    }
+}
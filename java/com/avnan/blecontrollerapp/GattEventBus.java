@@ -0,0 +1,72 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+// Delivers GattEvents from BluetoothLeService to listeners in the same process
+// Each listener is registered with the Executor it wants its events on (the main thread
+// executor for UI code) and optionally an address, so a screen about one device does not see
+// events from the others. Events reach a listener in the order they were posted as long as its
+// executor runs tasks in order. Nothing is parcelled or sent through the system.
+// Thread safe. Android-free.
+public class GattEventBus {
+    public interface Listener {
+        void onGattEvent(GattEvent event);
+    }
+
+    private static final class Registration {
+        final Listener mListener;
+        final Executor mExecutor;
+        final String mAddress;
+        // Cleared on unregister, so events already handed to the executor are dropped
+        volatile boolean mActive = true;
+
+        Registration(Listener listener, Executor executor, String address) {
+            mListener = listener;
+            mExecutor = executor;
+            mAddress = address;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
+    // Events for every device
+    public void register(Listener listener, Executor executor) {
+        register(listener, executor, null);
+    }
+
+    // Events for one device only; a null address means every device
+    public void register(Listener listener, Executor executor, String address) {
+        unregister(listener);
+        mRegistrations.add(new Registration(listener, executor, address));
+    }
+
+    public void unregister(Listener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                registration.mActive = false;
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    public boolean hasListeners() {
+        return !mRegistrations.isEmpty();
+    }
+
+    public void post(final GattEvent event) {
+        for (final Registration registration : mRegistrations) {
+            if (registration.mAddress != null && !registration.mAddress.equals(event.getAddress())) {
+                continue;
+            }
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (registration.mActive) {
+                        registration.mListener.onGattEvent(event);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.avnan.blecontrollerapp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+// The shape of a peripheral's GATT database: every service and characteristic with its
+// instance ID (the attribute handle on Android) and, for characteristics, its properties
+// Two layouts are equal when a peripheral would be used the same way, so comparing the cached
+// layout with a freshly discovered one tells whether the cache is still valid.
+// Stored as flat primitive arrays, one row per characteristic (services without characteristics
+// get a row with a zero characteristic UUID). Immutable. Android-free.
+public final class GattLayout {
+    private static final UUID NO_CHARACTERISTIC = new UUID(0, 0);
+
+    // 4 longs per row: service msb, service lsb, characteristic msb, characteristic lsb
+    private final long[] mUuids;
+    // 3 ints per row: service instance, characteristic instance, characteristic properties
+    private final int[] mAttributes;
+    private final int mRows;
+    private final int mHash;
+
+    private GattLayout(long[] uuids, int[] attributes, int rows) {
+        mUuids = uuids;
+        mAttributes = attributes;
+        mRows = rows;
+        mHash = 31 * Arrays.hashCode(Arrays.copyOf(uuids, rows * 4))
+                + Arrays.hashCode(Arrays.copyOf(attributes, rows * 3));
+    }
+
+    public int getCharacteristicCount() {
+        return mRows;
+    }
+
+    // Returns the row of a characteristic, or -1 if the layout does not have it
+    public int findCharacteristic(UUID service, UUID characteristic) {
+        long serviceMsb = service.getMostSignificantBits();
+        long serviceLsb = service.getLeastSignificantBits();
+        long characteristicMsb = characteristic.getMostSignificantBits();
+        long characteristicLsb = characteristic.getLeastSignificantBits();
+        for (int row = 0; row < mRows; row++) {
+            int base = row * 4;
+            if (mUuids[base + 2] == characteristicMsb && mUuids[base + 3] == characteristicLsb
+                    && mUuids[base] == serviceMsb && mUuids[base + 1] == serviceLsb) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    public boolean hasService(UUID service) {
+        long msb = service.getMostSignificantBits();
+        long lsb = service.getLeastSignificantBits();
+        for (int row = 0; row < mRows; row++) {
+            if (mUuids[row * 4] == msb && mUuids[row * 4 + 1] == lsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getCharacteristicHandle(int row) {
+        return mAttributes[row * 3 + 1];
+    }
+
+    public int getCharacteristicProperties(int row) {
+        return mAttributes[row * 3 + 2];
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof GattLayout)) {
+            return false;
+        }
+        GattLayout layout = (GattLayout) other;
+        if (mRows != layout.mRows || mHash != layout.mHash) {
+            return false;
+        }
+        for (int i = 0; i < mRows * 4; i++) {
+            if (mUuids[i] != layout.mUuids[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < mRows * 3; i++) {
+            if (mAttributes[i] != layout.mAttributes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(mRows);
+        for (int i = 0; i < mRows * 4; i++) {
+            out.writeLong(mUuids[i]);
+        }
+        for (int i = 0; i < mRows * 3; i++) {
+            out.writeInt(mAttributes[i]);
+        }
+    }
+
+    static GattLayout readFrom(DataInput in) throws IOException {
+        int rows = in.readInt();
+        if (rows < 0 || rows > 4096) {
+            throw new IOException("Corrupt layout, " + rows + " rows");
+        }
+        long[] uuids = new long[rows * 4];
+        int[] attributes = new int[rows * 3];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = in.readLong();
+        }
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = in.readInt();
+        }
+        return new GattLayout(uuids, attributes, rows);
+    }
+
+    // Rows must be added in discovery order for two layouts of the same database to be equal
+    public static class Builder {
+        private long[] mUuids = new long[16 * 4];
+        private int[] mAttributes = new int[16 * 3];
+        private int mRows;
+
+        public Builder addCharacteristic(UUID service, int serviceInstance, UUID characteristic,
+                                         int characteristicInstance, int properties) {
+            if ((mRows + 1) * 4 > mUuids.length) {
+                mUuids = Arrays.copyOf(mUuids, mUuids.length * 2);
+                mAttributes = Arrays.copyOf(mAttributes, mAttributes.length * 2);
+            }
+            int base = mRows * 4;
+            mUuids[base] = service.getMostSignificantBits();
+            mUuids[base + 1] = service.getLeastSignificantBits();
+            mUuids[base + 2] = characteristic.getMostSignificantBits();
+            mUuids[base + 3] = characteristic.getLeastSignificantBits();
+            base = mRows * 3;
+            mAttributes[base] = serviceInstance;
+            mAttributes[base + 1] = characteristicInstance;
+            mAttributes[base + 2] = properties;
+            mRows++;
+            return this;
+        }
+
+        public Builder addEmptyService(UUID service, int serviceInstance) {
+            return addCharacteristic(service, serviceInstance, NO_CHARACTERISTIC, -1, 0);
+        }
+
+        public GattLayout build() {
+            return new GattLayout(Arrays.copyOf(mUuids, mRows * 4),
+                    Arrays.copyOf(mAttributes, mRows * 3), mRows);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Serializes GATT operations for one connection
+// Android silently drops an operation that is issued while another one is still in flight, so
+// everything goes through here. Exactly one operation is outstanding at a time; the next one is
+// started as soon as the BluetoothGattCallback reports the previous one complete, or after the
+// timeout if the callback never arrives.
+// - The queue is bounded. enqueue() returns false when it is full so callers can back off.
+// - A write that has not been started yet is overwritten by a newer write to the same
+//   characteristic instead of being queued twice, since only the latest value matters.
+// Android-free so it can be driven against a fake GattClient on the JVM.
+public class GattOperationQueue {
+    public static final int OP_DISCOVER_SERVICES = 0;
+    public static final int OP_READ_CHARACTERISTIC = 1;
+    public static final int OP_WRITE_CHARACTERISTIC = 2;
+    public static final int OP_SET_NOTIFICATION = 3;
+    public static final int OP_READ_RSSI = 4;
+    public static final int OP_REQUEST_MTU = 5;
+
+    // Status codes reported to the Listener in addition to the GATT status values
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_REFUSED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    public static final int DEFAULT_MAX_DEPTH = 32;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    public interface Listener {
+        // Called once for every operation that leaves the queue, including timeouts and
+        // operations dropped by clear()
+        void onOperationFinished(Operation operation, int status);
+    }
+
+    public static final class Operation {
+        final int mType;
+        final UUID mService;
+        final UUID mCharacteristic;
+        byte[] mValue;
+        // The write type for writes, the requested MTU for OP_REQUEST_MTU
+        final int mWriteType;
+        final boolean mEnable;
+        final boolean mCoalesce;
+        // The waiting write enqueue() folded this one into instead of queueing it
+        Operation mCoalescedInto;
+
+        private Operation(int type, UUID service, UUID characteristic, byte[] value,
+                          int writeType, boolean enable, boolean coalesce) {
+            mType = type;
+            mService = service;
+            mCharacteristic = characteristic;
+            mValue = value;
+            mWriteType = writeType;
+            mEnable = enable;
+            mCoalesce = coalesce;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public UUID getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+
+        // Set by enqueue() if this write only replaced the value of one still waiting
+        public Operation getCoalescedInto() {
+            return mCoalescedInto;
+        }
+
+        boolean execute(GattClient client) {
+            switch (mType) {
+                case OP_DISCOVER_SERVICES:
+                    return client.discoverServices();
+                case OP_READ_CHARACTERISTIC:
+                    return client.readCharacteristic(mService, mCharacteristic);
+                case OP_WRITE_CHARACTERISTIC:
+                    return client.writeCharacteristic(mService, mCharacteristic, mValue, mWriteType);
+                case OP_READ_RSSI:
+                    return client.readRemoteRssi();
+                case OP_REQUEST_MTU:
+                    return client.requestMtu(mWriteType);
+                default:
+                    return false;
+            }
+        }
+
+        // Whether a newer write may replace this one while it is still waiting
+        boolean isSupersededBy(Operation other) {
+            return mCoalesce && other.mCoalesce
+                    && mType == OP_WRITE_CHARACTERISTIC && other.mType == OP_WRITE_CHARACTERISTIC
+                    && mWriteType == other.mWriteType
+                    && mCharacteristic.equals(other.mCharacteristic)
+                    && mService.equals(other.mService);
+        }
+    }
+
+    public static Operation discoverServices() {
+        return new Operation(OP_DISCOVER_SERVICES, null, null, null, 0, false, false);
+    }
+
+    public static Operation readCharacteristic(UUID service, UUID characteristic) {
+        return new Operation(OP_READ_CHARACTERISTIC, service, characteristic, null, 0, false, false);
+    }
+
+    // The value is copied, so the caller may reuse its buffer as soon as this returns
+    public static Operation writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                                int writeType, boolean coalesce) {
+        return new Operation(OP_WRITE_CHARACTERISTIC, service, characteristic,
+                Arrays.copyOf(value, value.length), writeType, false, coalesce);
+    }
+
+    // Writes length bytes of value starting at offset, copied like above
+    public static Operation writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                                int offset, int length, int writeType, boolean coalesce) {
+        return new Operation(OP_WRITE_CHARACTERISTIC, service, characteristic,
+                Arrays.copyOfRange(value, offset, offset + length), writeType, false, coalesce);
+    }
+
+    public static Operation setNotification(UUID service, UUID characteristic, boolean enable) {
+        return new Operation(OP_SET_NOTIFICATION, service, characteristic, null, 0, enable, false);
+    }
+
+    public static Operation readRemoteRssi() {
+        return new Operation(OP_READ_RSSI, null, null, null, 0, false, false);
+    }
+
+    public static Operation requestMtu(int mtu) {
+        return new Operation(OP_REQUEST_MTU, null, null, null, mtu, false, false);
+    }
+
+    private final GattClient mClient;
+    private final ScheduledExecutorService mTimer;
+    private final int mMaxDepth;
+    private final long mTimeoutMs;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private Listener mListener;
+    private Operation mInFlight;
+    private ScheduledFuture<?> mTimeoutFuture;
+    private long mDeadlineNanos;
+    private int mCoalescedCount;
+    private int mRejectedCount;
+
+    public GattOperationQueue(GattClient client, ScheduledExecutorService timer) {
+        this(client, timer, DEFAULT_MAX_DEPTH, DEFAULT_TIMEOUT_MS);
+    }
+
+    public GattOperationQueue(GattClient client, ScheduledExecutorService timer,
+                              int maxDepth, long timeoutMs) {
+        mClient = client;
+        mTimer = timer;
+        mMaxDepth = maxDepth;
+        mTimeoutMs = timeoutMs;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // Returns false if the queue is full; the operation was not accepted in that case
+    public boolean enqueue(Operation operation) {
+        synchronized (this) {
+            if (operation.mCoalesce) {
+                for (Operation waiting : mPending) {
+                    if (waiting.isSupersededBy(operation)) {
+                        waiting.mValue = operation.mValue;
+                        operation.mCoalescedInto = waiting;
+                        mCoalescedCount++;
+                        return true;
+                    }
+                }
+            }
+            if (mPending.size() >= mMaxDepth) {
+                mRejectedCount++;
+                return false;
+            }
+            mPending.addLast(operation);
+        }
+        startNext();
+        return true;
+    }
+
+    // Forwarded from the BluetoothGattCallback. characteristic is ignored for operations that
+    // do not target one. Callbacks that do not match the operation in flight are stale (for
+    // example a late answer to an operation that already timed out) and are ignored.
+    public void onOperationComplete(int type, UUID characteristic, int status) {
+        Operation finished;
+        Listener listener;
+        synchronized (this) {
+            finished = mInFlight;
+            if (finished == null || finished.mType != type
+                    || (finished.mCharacteristic != null && characteristic != null
+                    && !finished.mCharacteristic.equals(characteristic))) {
+                return;
+            }
+            finishInFlight();
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onOperationFinished(finished, status);
+        }
+        startNext();
+    }
+
+    // Drops everything, e.g. after a disconnect. The operation in flight is abandoned.
+    public void clear() {
+        Operation[] dropped;
+        Listener listener;
+        synchronized (this) {
+            int count = mPending.size() + (mInFlight != null ? 1 : 0);
+            dropped = new Operation[count];
+            int i = 0;
+            if (mInFlight != null) {
+                dropped[i++] = mInFlight;
+                finishInFlight();
+            }
+            while (!mPending.isEmpty()) {
+                dropped[i++] = mPending.pollFirst();
+            }
+            listener = mListener;
+        }
+        if (listener != null) {
+            for (Operation operation : dropped) {
+                listener.onOperationFinished(operation, STATUS_CANCELLED);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mInFlight != null ? 1 : 0);
+    }
+
+    public synchronized boolean isIdle() {
+        return mInFlight == null && mPending.isEmpty();
+    }
+
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    private void startNext() {
+        while (true) {
+            Operation next;
+            synchronized (this) {
+                if (mInFlight != null || mPending.isEmpty()) {
+                    return;
+                }
+                next = mPending.pollFirst();
+                mInFlight = next;
+            }
+            if (start(next)) {
+                return;
+            }
+        }
+    }
+
+    // Returns true if the operation is now waiting for its callback
+    private boolean start(Operation operation) {
+        boolean started;
+        boolean completed = false;
+        if (operation.mType == OP_SET_NOTIFICATION) {
+            int result = mClient.setCharacteristicNotification(
+                    operation.mService, operation.mCharacteristic, operation.mEnable);
+            started = result != GattClient.NOTIFICATION_FAILED;
+            completed = result == GattClient.NOTIFICATION_SET;
+        } else {
+            started = operation.execute(mClient);
+        }
+
+        Listener listener;
+        synchronized (this) {
+            if (mInFlight != operation) {
+                // Cleared while the call was being made
+                return true;
+            }
+            if (started && !completed) {
+                mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeoutMs);
+                mTimeoutFuture = mTimer.schedule(mTimeoutTask, mTimeoutMs, TimeUnit.MILLISECONDS);
+                return true;
+            }
+            finishInFlight();
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onOperationFinished(operation, started ? STATUS_SUCCESS : STATUS_REFUSED);
+        }
+        return false;
+    }
+
+    private void onTimeout() {
+        Operation expired;
+        Listener listener;
+        synchronized (this) {
+            expired = mInFlight;
+            // A timeout that raced with a completion must not expire the next operation
+            if (expired == null || System.nanoTime() - mDeadlineNanos < 0) {
+                return;
+            }
+            finishInFlight();
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onOperationFinished(expired, STATUS_TIMEOUT);
+        }
+        startNext();
+    }
+
+    // Must hold the lock
+    private void finishInFlight() {
+        mInFlight = null;
+        if (mTimeoutFuture != null) {
+            mTimeoutFuture.cancel(false);
+            mTimeoutFuture = null;
+        }
+    }
+}
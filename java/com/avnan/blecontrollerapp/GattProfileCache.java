@@ -0,0 +1,153 @@
+package com.avnan.blecontrollerapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the GATT layout of every peripheral we have connected to, so a reconnect can check
+// the layout it finds against what it expects instead of starting from nothing
+// Entries are keyed by device address and tagged with the firmware revision the peripheral
+// reported; new firmware or a layout that no longer matches drops the entry. The cache holds at
+// most maxEntries peripherals and evicts the least recently used one beyond that.
+// Thread safe. Android-free; the owner decides where the bytes are stored.
+public class GattProfileCache {
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+
+    private static final int FILE_MAGIC = 0x47504331; // "GPC1"
+
+    private static final class CachedLayout {
+        final String mFirmwareRevision;
+        final GattLayout mLayout;
+
+        CachedLayout(String firmwareRevision, GattLayout layout) {
+            mFirmwareRevision = firmwareRevision;
+            mLayout = layout;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, CachedLayout> mEntries;
+    private boolean mDirty;
+
+    public GattProfileCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public GattProfileCache(final int maxEntries) {
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, CachedLayout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedLayout> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    // Returns the cached layout for a peripheral, or null if there is none
+    public synchronized GattLayout get(String address) {
+        CachedLayout entry = mEntries.get(address);
+        return entry == null ? null : entry.mLayout;
+    }
+
+    // Returns the firmware revision the cached layout was recorded with (null if unknown)
+    public synchronized String getFirmwareRevision(String address) {
+        CachedLayout entry = mEntries.get(address);
+        return entry == null ? null : entry.mFirmwareRevision;
+    }
+
+    // Records a freshly discovered layout
+    // Returns false if the cache already held exactly this, true if the entry was added or
+    // replaced because discovery found something different
+    public synchronized boolean put(String address, GattLayout layout) {
+        CachedLayout entry = mEntries.get(address);
+        if (entry != null && entry.mLayout.equals(layout)) {
+            return false;
+        }
+        mEntries.put(address, new CachedLayout(null, layout));
+        mDirty = true;
+        return true;
+    }
+
+    // Tags the entry with the firmware revision read from the peripheral
+    // Returns false if the entry had been recorded with a different revision, in which case the
+    // entry is dropped and the layout must be discovered again
+    public synchronized boolean updateFirmwareRevision(String address, String firmwareRevision) {
+        CachedLayout entry = mEntries.get(address);
+        if (entry == null) {
+            return true;
+        }
+        if (entry.mFirmwareRevision == null) {
+            mEntries.put(address, new CachedLayout(firmwareRevision, entry.mLayout));
+            mDirty = true;
+            return true;
+        }
+        if (entry.mFirmwareRevision.equals(firmwareRevision)) {
+            return true;
+        }
+        mEntries.remove(address);
+        mDirty = true;
+        return false;
+    }
+
+    public synchronized void invalidate(String address) {
+        if (mEntries.remove(address) != null) {
+            mDirty = true;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    // True if there are changes that have not been written out
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    public synchronized void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(mEntries.size());
+        // Least recently used first, so reading the file back restores the order
+        for (Map.Entry<String, CachedLayout> entry : mEntries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            String firmware = entry.getValue().mFirmwareRevision;
+            out.writeBoolean(firmware != null);
+            if (firmware != null) {
+                out.writeUTF(firmware);
+            }
+            entry.getValue().mLayout.writeTo(out);
+        }
+        out.flush();
+        mDirty = false;
+    }
+
+    // Loads what was saved by writeTo. Entries recorded since the cache was created are newer
+    // than the file and are kept.
+    public synchronized void readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a GATT profile cache");
+        }
+        int count = in.readInt();
+        LinkedHashMap<String, CachedLayout> loaded = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String address = in.readUTF();
+            String firmware = in.readBoolean() ? in.readUTF() : null;
+            loaded.put(address, new CachedLayout(firmware, GattLayout.readFrom(in)));
+        }
+        for (Map.Entry<String, CachedLayout> entry : mEntries.entrySet()) {
+            loaded.put(entry.getKey(), entry.getValue());
+        }
+        boolean hadNewer = !mEntries.isEmpty();
+        mEntries.clear();
+        mEntries.putAll(loaded);
+        mDirty = hadNewer;
+    }
+}
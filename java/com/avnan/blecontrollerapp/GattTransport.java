@@ -0,0 +1,67 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.UUID;
+
+// Opens GATT links: the seam between BluetoothLeService's connection logic and the Bluetooth
+// stack. AndroidGattTransport goes through BluetoothAdapter.connectGatt; SimulatedTransport hosts
+// virtual controllers in the same process, for load and soak runs without hardware.
+// Callbacks mirror BluetoothGattCallback, with UUIDs and copied values instead of framework
+// objects. They may arrive on any thread, but never from inside the call that caused them.
+// Android-free.
+public interface GattTransport {
+    // Same values as BluetoothProfile.STATE_*
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTED = 2;
+
+    // Same values as BluetoothGatt.GATT_*, plus the stack's catch-all connection failure
+    int GATT_SUCCESS = 0;
+    int GATT_CONNECTION_TIMEOUT = 8;
+    int GATT_ERROR = 133;
+    int GATT_FAILURE = 0x101;
+
+    interface Link extends GattClient {
+        String getAddress();
+
+        // The database the link currently holds, e.g. from an earlier session on the same link;
+        // null if nothing has been discovered
+        GattLayout getLayout();
+
+        void disconnect();
+
+        // Brings a disconnected link back up, keeping the services it discovered. Waits for the
+        // device however long it takes, like a background connect. Returns false if the link
+        // cannot be reused.
+        boolean reconnect();
+
+        // Releases the link. No callbacks arrive afterwards.
+        void close();
+    }
+
+    interface Callback {
+        void onConnectionStateChange(Link link, int status, int newState);
+
+        void onServicesDiscovered(Link link, int status);
+
+        void onCharacteristicRead(Link link, UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(Link link, UUID characteristic, int status);
+
+        // The Client Characteristic Configuration write started by setCharacteristicNotification
+        void onDescriptorWrite(Link link, UUID characteristic, int status);
+
+        // value is only valid for the duration of the call
+        void onCharacteristicChanged(Link link, UUID characteristic, byte[] value);
+
+        void onMtuChanged(Link link, int mtu, int status);
+
+        void onPhyUpdate(Link link, int txPhy, int rxPhy, int status);
+
+        void onConnectionUpdated(Link link, int interval, int latency, int timeout, int status);
+
+        void onReadRemoteRssi(Link link, int rssi, int status);
+    }
+
+    // background waits for the device indefinitely, like autoConnect. Returns null if the link
+    // could not be started at all.
+    Link connect(String address, boolean background, Callback callback);
+}
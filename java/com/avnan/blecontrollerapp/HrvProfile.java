@@ -0,0 +1,110 @@
+package com.avnan.blecontrollerapp;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+
+// The attributes of an HRV controller, picked out of a discovered GATT database
+// Resolution walks the services and their characteristics once and switches on the registry ID
+// of each UUID, so nothing is parsed or compared String-wise. Vendor attributes registered with
+// GattAttributes.register() resolve to their ID as well and can be found with getVendor().
+public class HrvProfile {
+    private BluetoothGattService mControlService;
+    private BluetoothGattCharacteristic mControlInput;
+    private BluetoothGattCharacteristic mControlAcknowledgement;
+    private BluetoothGattCharacteristic mTimerValue;
+    private BluetoothGattCharacteristic mFirmwareRevision;
+    // Vendor characteristics, indexed by position in order of discovery, with their registry IDs
+    private BluetoothGattCharacteristic[] mVendor = new BluetoothGattCharacteristic[0];
+    private int[] mVendorIds = new int[0];
+
+    private HrvProfile() {
+    }
+
+    public static HrvProfile resolve(List<BluetoothGattService> services) {
+        HrvProfile profile = new HrvProfile();
+        if (services == null) {
+            return profile;
+        }
+        for (BluetoothGattService service : services) {
+            int serviceId = GattAttributes.idOf(service.getUuid());
+            if (serviceId == UuidRegistry.UNKNOWN) {
+                continue;
+            }
+            if (serviceId == GattAttributes.ID_HRV_CONTROL_SERVICE) {
+                profile.mControlService = service;
+            }
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                int id = GattAttributes.idOf(characteristic.getUuid());
+                switch (id) {
+                    case UuidRegistry.UNKNOWN:
+                        break;
+                    case GattAttributes.ID_HRV_CONTROL_CHARACTERISTIC:
+                        profile.mControlInput = characteristic;
+                        break;
+                    case GattAttributes.ID_CONTROL_ACKNOWLEDGE:
+                        profile.mControlAcknowledgement = characteristic;
+                        break;
+                    case GattAttributes.ID_TIMER_VALUE:
+                        profile.mTimerValue = characteristic;
+                        break;
+                    case GattAttributes.ID_FIRMWARE_REVISION:
+                        profile.mFirmwareRevision = characteristic;
+                        break;
+                    default:
+                        profile.addVendor(id, characteristic);
+                        break;
+                }
+            }
+        }
+        return profile;
+    }
+
+    private void addVendor(int id, BluetoothGattCharacteristic characteristic) {
+        int count = mVendor.length;
+        BluetoothGattCharacteristic[] vendor = new BluetoothGattCharacteristic[count + 1];
+        int[] ids = new int[count + 1];
+        System.arraycopy(mVendor, 0, vendor, 0, count);
+        System.arraycopy(mVendorIds, 0, ids, 0, count);
+        vendor[count] = characteristic;
+        ids[count] = id;
+        mVendor = vendor;
+        mVendorIds = ids;
+    }
+
+    // True if the peripheral can be controlled at all
+    public boolean isComplete() {
+        return mControlService != null && mControlInput != null;
+    }
+
+    public BluetoothGattService getControlService() {
+        return mControlService;
+    }
+
+    public BluetoothGattCharacteristic getControlInput() {
+        return mControlInput;
+    }
+
+    public BluetoothGattCharacteristic getControlAcknowledgement() {
+        return mControlAcknowledgement;
+    }
+
+    public BluetoothGattCharacteristic getTimerValue() {
+        return mTimerValue;
+    }
+
+    public BluetoothGattCharacteristic getFirmwareRevision() {
+        return mFirmwareRevision;
+    }
+
+    // The first characteristic registered under a vendor ID, or null
+    public BluetoothGattCharacteristic getVendor(int id) {
+        for (int i = 0; i < mVendorIds.length; i++) {
+            if (mVendorIds[i] == id) {
+                return mVendor[i];
+            }
+        }
+        return null;
+    }
+}
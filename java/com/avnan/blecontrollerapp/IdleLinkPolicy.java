@@ -0,0 +1,91 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.HashMap;
+
+// Decides when BluetoothLeService lets go of a warm link
+// A link is held while a screen is attached to its device. Once the last one detaches, the link
+// stays up until it has gone unused for the idle timeout, so coming back to the device is
+// instant instead of paying for a connect and discovery again. Use means anything the user
+// did with the device: attaching, detaching, commands. Background traffic such as RSSI polls
+// does not count.
+// Thread safe. Android-free; times are elapsed-realtime milliseconds.
+public class IdleLinkPolicy {
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static final class Usage {
+        int mAttached;
+        long mLastUsed;
+    }
+
+    private final HashMap<String, Usage> mUsage = new HashMap<>();
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT_MS;
+
+    public synchronized void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Negative idle timeout");
+        }
+        mIdleTimeout = idleTimeoutMillis;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    public synchronized void attach(String address, long now) {
+        Usage usage = usageOf(address, now);
+        usage.mAttached++;
+        usage.mLastUsed = now;
+    }
+
+    public synchronized void detach(String address, long now) {
+        Usage usage = mUsage.get(address);
+        if (usage == null || usage.mAttached == 0) {
+            return;
+        }
+        usage.mAttached--;
+        usage.mLastUsed = now;
+    }
+
+    public synchronized void onUsed(String address, long now) {
+        usageOf(address, now).mLastUsed = now;
+    }
+
+    public synchronized boolean isAttached(String address) {
+        Usage usage = mUsage.get(address);
+        return usage != null && usage.mAttached > 0;
+    }
+
+    // Whether any screen is attached to any device
+    public synchronized boolean hasAttachments() {
+        for (Usage usage : mUsage.values()) {
+            if (usage.mAttached > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A link nobody has used yet starts its idle time now
+    public synchronized boolean shouldRelease(String address, long now) {
+        Usage usage = usageOf(address, now);
+        return usage.mAttached == 0 && now - usage.mLastUsed >= mIdleTimeout;
+    }
+
+    // The link has been released; its history goes with it
+    public synchronized void forget(String address) {
+        Usage usage = mUsage.get(address);
+        if (usage != null && usage.mAttached == 0) {
+            mUsage.remove(address);
+        }
+    }
+
+    private Usage usageOf(String address, long now) {
+        Usage usage = mUsage.get(address);
+        if (usage == null) {
+            usage = new Usage();
+            usage.mLastUsed = now;
+            mUsage.put(address, usage);
+        }
+        return usage;
+    }
+}
@@ -0,0 +1,70 @@
+package com.avnan.blecontrollerapp;
+
+// The timing a link is actually running with, as last reported by the stack
+// interval and supervision timeout are kept in the units the controller uses (1.25 ms and 10 ms);
+// 0 means not reported yet. PHYs are BluetoothDevice.PHY_LE_* values, 0 if not reported.
+// Immutable. Android-free.
+public final class LinkParameters {
+    public static final LinkParameters UNKNOWN = new LinkParameters(null, 0, 0, 0, 0, 0);
+
+    private final LinkProfile mProfile;
+    private final int mInterval;
+    private final int mLatency;
+    private final int mSupervisionTimeout;
+    private final int mTxPhy;
+    private final int mRxPhy;
+
+    private LinkParameters(LinkProfile profile, int interval, int latency, int supervisionTimeout,
+                           int txPhy, int rxPhy) {
+        mProfile = profile;
+        mInterval = interval;
+        mLatency = latency;
+        mSupervisionTimeout = supervisionTimeout;
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+    }
+
+    public LinkParameters withProfile(LinkProfile profile) {
+        return new LinkParameters(profile, mInterval, mLatency, mSupervisionTimeout, mTxPhy, mRxPhy);
+    }
+
+    public LinkParameters withConnectionParameters(int interval, int latency, int supervisionTimeout) {
+        return new LinkParameters(mProfile, interval, latency, supervisionTimeout, mTxPhy, mRxPhy);
+    }
+
+    public LinkParameters withPhy(int txPhy, int rxPhy) {
+        return new LinkParameters(mProfile, mInterval, mLatency, mSupervisionTimeout, txPhy, rxPhy);
+    }
+
+    // The profile last requested, null before the first request
+    public LinkProfile getProfile() {
+        return mProfile;
+    }
+
+    public double getIntervalMillis() {
+        return mInterval * 1.25;
+    }
+
+    // Connection events the peripheral may skip
+    public int getLatency() {
+        return mLatency;
+    }
+
+    public int getSupervisionTimeoutMillis() {
+        return mSupervisionTimeout * 10;
+    }
+
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    @Override
+    public String toString() {
+        return mProfile + ", interval " + getIntervalMillis() + " ms, latency " + mLatency
+                + ", timeout " + getSupervisionTimeoutMillis() + " ms, PHY " + mTxPhy + "/" + mRxPhy;
+    }
+}
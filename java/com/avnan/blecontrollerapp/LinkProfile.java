@@ -0,0 +1,30 @@
+package com.avnan.blecontrollerapp;
+
+// How a link trades latency against power
+// Each profile is a connection priority, which the stack turns into a connection interval and
+// slave latency, and a preferred PHY. The ESP32 may settle on something else; what it actually
+// agreed to is reported back as LinkParameters.
+public enum LinkProfile {
+    // 7.5-15 ms interval on the 2M PHY: commands and their acknowledgements turn around quickly
+    INTERACTIVE(GattClient.CONNECTION_PRIORITY_HIGH, GattClient.PHY_LE_2M_MASK),
+    // 30-50 ms interval, the stack's default
+    BALANCED(GattClient.CONNECTION_PRIORITY_BALANCED, GattClient.PHY_LE_1M_MASK),
+    // 100-125 ms interval with slave latency; for a link that is only kept up while a countdown runs
+    LOW_POWER(GattClient.CONNECTION_PRIORITY_LOW_POWER, GattClient.PHY_LE_1M_MASK);
+
+    private final int mConnectionPriority;
+    private final int mPhyMask;
+
+    LinkProfile(int connectionPriority, int phyMask) {
+        mConnectionPriority = connectionPriority;
+        mPhyMask = phyMask;
+    }
+
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    public int getPhyMask() {
+        return mPhyMask;
+    }
+}
@@ -0,0 +1,72 @@
+package com.avnan.blecontrollerapp;
+
+// Picks the LinkProfile a connection should be on
+// In automatic mode a link is INTERACTIVE while the user is working with the device, drops to
+// BALANCED once they have been idle for interactiveHold, and to LOW_POWER after balancedHold more.
+// A pinned profile overrides this until it is unpinned.
+// Thread safe. Android-free; times are in milliseconds on any monotonic clock.
+public class LinkProfileSelector {
+    public static final long DEFAULT_INTERACTIVE_HOLD_MS = 5000;
+    public static final long DEFAULT_BALANCED_HOLD_MS = 30000;
+
+    private final long mInteractiveHold;
+    private final long mBalancedHold;
+    private LinkProfile mPinned;
+    private boolean mInteracted;
+    private long mLastInteraction;
+
+    public LinkProfileSelector() {
+        this(DEFAULT_INTERACTIVE_HOLD_MS, DEFAULT_BALANCED_HOLD_MS);
+    }
+
+    public LinkProfileSelector(long interactiveHoldMillis, long balancedHoldMillis) {
+        mInteractiveHold = interactiveHoldMillis;
+        mBalancedHold = balancedHoldMillis;
+    }
+
+    // null goes back to automatic selection
+    public synchronized void pin(LinkProfile profile) {
+        mPinned = profile;
+    }
+
+    public synchronized LinkProfile getPinned() {
+        return mPinned;
+    }
+
+    public synchronized void onInteraction(long now) {
+        mInteracted = true;
+        mLastInteraction = now;
+    }
+
+    public synchronized LinkProfile select(long now) {
+        if (mPinned != null) {
+            return mPinned;
+        }
+        if (!mInteracted) {
+            return LinkProfile.BALANCED;
+        }
+        long idle = now - mLastInteraction;
+        if (idle < mInteractiveHold) {
+            return LinkProfile.INTERACTIVE;
+        }
+        if (idle < mInteractiveHold + mBalancedHold) {
+            return LinkProfile.BALANCED;
+        }
+        return LinkProfile.LOW_POWER;
+    }
+
+    // Milliseconds until select() will return something else without another interaction, or -1
+    public synchronized long untilNextChange(long now) {
+        if (mPinned != null || !mInteracted) {
+            return -1;
+        }
+        long idle = now - mLastInteraction;
+        if (idle < mInteractiveHold) {
+            return mInteractiveHold - idle;
+        }
+        if (idle < mInteractiveHold + mBalancedHold) {
+            return mInteractiveHold + mBalancedHold - idle;
+        }
+        return -1;
+    }
+}
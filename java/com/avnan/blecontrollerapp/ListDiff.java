@@ -0,0 +1,245 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Computes the notifications that turn one list into another, for lists whose items have
+// unique keys (MAC addresses for the scan list)
+// - Items whose key disappeared are removed, new keys are inserted.
+// - Items that kept their relative order stay put. The largest such group is found with a
+//   longest increasing subsequence, so every other surviving item is moved exactly once.
+// - Surviving items whose content changed get one change notification carrying flags that
+//   describe what changed, so the adapter can rebind only the affected views.
+// The operations are recorded and replayed in order with Result.dispatchTo, which lets the diff
+// run on a background thread and the notifications happen on the main thread. The replay follows
+// RecyclerView's rules: every position is relative to the list as it is after the previous
+// operation. Pure Java.
+public final class ListDiff {
+    public interface Callback {
+        int getOldSize();
+
+        int getNewSize();
+
+        Object getOldKey(int oldPosition);
+
+        Object getNewKey(int newPosition);
+
+        // Returns 0 if the item is unchanged, otherwise non-zero flags describing the change
+        int getChanges(int oldPosition, int newPosition);
+    }
+
+    // Mirrors the notifyItem* methods of RecyclerView.Adapter
+    public interface UpdateCallback {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position, int count, int changes);
+    }
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_REMOVE = 1;
+    private static final int OP_MOVE = 2;
+    private static final int OP_CHANGE = 3;
+
+    // Recorded operations, four ints each: type, position, count/target, change flags
+    public static final class Result {
+        private int[] mOps = new int[32];
+        private int mCount;
+
+        public boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        public int getOperationCount() {
+            return mCount;
+        }
+
+        public void dispatchTo(UpdateCallback callback) {
+            for (int i = 0; i < mCount; i++) {
+                int base = i * 4;
+                switch (mOps[base]) {
+                    case OP_INSERT:
+                        callback.onInserted(mOps[base + 1], mOps[base + 2]);
+                        break;
+                    case OP_REMOVE:
+                        callback.onRemoved(mOps[base + 1], mOps[base + 2]);
+                        break;
+                    case OP_MOVE:
+                        callback.onMoved(mOps[base + 1], mOps[base + 2]);
+                        break;
+                    case OP_CHANGE:
+                        callback.onChanged(mOps[base + 1], mOps[base + 2], mOps[base + 3]);
+                        break;
+                }
+            }
+        }
+
+        private void insert(int position) {
+            int last = (mCount - 1) * 4;
+            if (mCount > 0 && mOps[last] == OP_INSERT && mOps[last + 1] + mOps[last + 2] == position) {
+                mOps[last + 2]++;
+                return;
+            }
+            add(OP_INSERT, position, 1, 0);
+        }
+
+        // Removals are recorded back to front, so a run grows downwards
+        private void remove(int position) {
+            int last = (mCount - 1) * 4;
+            if (mCount > 0 && mOps[last] == OP_REMOVE && mOps[last + 1] == position + 1) {
+                mOps[last + 1] = position;
+                mOps[last + 2]++;
+                return;
+            }
+            add(OP_REMOVE, position, 1, 0);
+        }
+
+        private void change(int position, int changes) {
+            int last = (mCount - 1) * 4;
+            if (mCount > 0 && mOps[last] == OP_CHANGE && mOps[last + 3] == changes
+                    && mOps[last + 1] + mOps[last + 2] == position) {
+                mOps[last + 2]++;
+                return;
+            }
+            add(OP_CHANGE, position, 1, changes);
+        }
+
+        private void add(int type, int position, int count, int changes) {
+            if ((mCount + 1) * 4 > mOps.length) {
+                mOps = Arrays.copyOf(mOps, mOps.length * 2);
+            }
+            int base = mCount * 4;
+            mOps[base] = type;
+            mOps[base + 1] = position;
+            mOps[base + 2] = count;
+            mOps[base + 3] = changes;
+            mCount++;
+        }
+    }
+
+    private ListDiff() {
+    }
+
+    public static Result calculate(Callback callback) {
+        final int oldSize = callback.getOldSize();
+        final int newSize = callback.getNewSize();
+        Result result = new Result();
+
+        HashMap<Object, Integer> newIndex = new HashMap<>(newSize * 2);
+        for (int i = 0; i < newSize; i++) {
+            newIndex.put(callback.getNewKey(i), i);
+        }
+
+        // Where each old item ends up, and where each new item came from
+        int[] oldToNew = new int[oldSize];
+        int[] newToOld = new int[newSize];
+        Arrays.fill(newToOld, -1);
+        for (int i = 0; i < oldSize; i++) {
+            Integer target = newIndex.get(callback.getOldKey(i));
+            oldToNew[i] = target == null ? -1 : target;
+            if (target != null) {
+                newToOld[target] = i;
+            }
+        }
+
+        // Removals, back to front so earlier positions stay valid
+        for (int i = oldSize - 1; i >= 0; i--) {
+            if (oldToNew[i] == -1) {
+                result.remove(i);
+            }
+        }
+
+        // The current list, identified by new positions
+        int[] current = new int[newSize];
+        int size = 0;
+        for (int i = 0; i < oldSize; i++) {
+            if (oldToNew[i] != -1) {
+                current[size++] = oldToNew[i];
+            }
+        }
+        boolean[] stable = new boolean[newSize];
+        markLongestIncreasingRun(current, size, stable);
+
+        // Place every item that is new or out of order right after its predecessor in the new
+        // list. Stable items never move, and an item placed after its predecessor is never
+        // separated from it again, so the result is the new order.
+        for (int target = 0; target < newSize; target++) {
+            if (stable[target]) {
+                continue;
+            }
+            if (newToOld[target] == -1) {
+                int position = target == 0 ? 0 : indexOf(current, size, target - 1) + 1;
+                System.arraycopy(current, position, current, position + 1, size - position);
+                current[position] = target;
+                size++;
+                result.insert(position);
+            } else {
+                int from = indexOf(current, size, target);
+                System.arraycopy(current, from + 1, current, from, size - from - 1);
+                size--;
+                int to = target == 0 ? 0 : indexOf(current, size, target - 1) + 1;
+                System.arraycopy(current, to, current, to + 1, size - to);
+                current[to] = target;
+                size++;
+                if (from != to) {
+                    result.add(OP_MOVE, from, to, 0);
+                }
+            }
+        }
+
+        // Content changes, at final positions
+        for (int target = 0; target < newSize; target++) {
+            int source = newToOld[target];
+            if (source != -1) {
+                int changes = callback.getChanges(source, target);
+                if (changes != 0) {
+                    result.change(target, changes);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int indexOf(int[] values, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Marks the values that form one longest increasing subsequence of values[0..size)
+    private static void markLongestIncreasingRun(int[] values, int size, boolean[] marks) {
+        if (size == 0) {
+            return;
+        }
+        // tails[k] = index of the smallest tail of an increasing run of length k + 1
+        int[] tails = new int[size];
+        int[] previous = new int[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        for (int i = tails[length - 1]; i >= 0; i = previous[i]) {
+            marks[values[i]] = true;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.avnan.blecontrollerapp;
+
+// Rate limit for log lines on per-packet paths
+// Lets through at most perInterval events in every interval and counts the rest, so the next line
+// that gets through can say how many were left out.
+// Thread safe. Android-free; times are in milliseconds on any monotonic clock.
+public class LogSampler {
+    private final int mPerInterval;
+    private final long mInterval;
+    private long mIntervalStart = Long.MIN_VALUE;
+    private int mPassed;
+    private int mSuppressed;
+
+    public LogSampler(int perInterval, long intervalMillis) {
+        if (perInterval < 1 || intervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid sampling rate");
+        }
+        mPerInterval = perInterval;
+        mInterval = intervalMillis;
+    }
+
+    // Whether the event at now should be logged
+    public synchronized boolean sample(long now) {
+        if (mIntervalStart == Long.MIN_VALUE || now - mIntervalStart >= mInterval) {
+            mIntervalStart = now;
+            mPassed = 0;
+        }
+        if (mPassed < mPerInterval) {
+            mPassed++;
+            return true;
+        }
+        mSuppressed++;
+        return false;
+    }
+
+    // Events left out since the last call
+    public synchronized int takeSuppressed() {
+        int suppressed = mSuppressed;
+        mSuppressed = 0;
+        return suppressed;
+    }
+}
@@ -14,30 +14,70 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Settings;
-import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ProgressBar;
 
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity {
     private static final String LOG_TAG = MainActivity.class.getSimpleName();
     private static final int REQUEST_ENABLE_BT = 1;
+    private static final int REQUEST_LOCATION_PERMISSION = 2;
 
-    private final LinkedList<BluetoothDevice> mDeviceList = new LinkedList<>();
+    // The controller the user opened last. A scan ends as soon as it shows up.
+    private static final String PREFERENCES_NAME = "controllers";
+    private static final String KEY_KNOWN_CONTROLLER = "known_controller";
+    private volatile String mKnownController;
+    private boolean mFullyDrawnReported;
+
+    // When to scan, in which mode and for how long; fed from the pipeline thread
+    private final ScanScheduler mScanScheduler = new ScanScheduler();
+    private static final long CONVERGENCE_CHECK_INTERVAL = 250;
+
+    // Bound from the start, so the service is up and initialized by the time a device is picked
+    // and connecting can begin while the device screen is still opening
+    private BluetoothLeService mBluetoothLeService;
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            BluetoothLeService service = ((BluetoothLeService.LocalBinder) iBinder).getService();
+            if (service.initialize()) {
+                mBluetoothLeService = service;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    // Scan results are processed on this thread and reach the list at most every
+    // SCAN_PUBLISH_INTERVAL milliseconds
+    private final ScheduledExecutorService mScanExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScanPipeline<ScanResult> mScanPipeline;
 
     private RecyclerView mRecyclerView;
     private ScanListAdapter mAdapter;
@@ -48,12 +88,98 @@ public class MainActivity extends AppCompatActivity {
     // Bluetooth related variables
     BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
+    // Devices not heard from since this time are dropped when the scan ends
+    private long mScanStartTime;
     private Handler mHandler;
-    private static final long SCAN_PERIOD = 5000;
+    private static final long SCAN_PUBLISH_INTERVAL = ScanPipeline.DEFAULT_PUBLISH_INTERVAL_MS;
+    // A controller that has not advertised for this long while scanning is taken to be gone
+    private static final long SCAN_STALE_AFTER = 6000;
+    // When the controller supports it, let it collect results and deliver them in batches
+    // through onBatchScanResults instead of waking us for every packet
+    private static final boolean USE_HARDWARE_BATCHING = true;
+    private static final long BATCH_REPORT_DELAY = 1000;
+
+    // Which advertisements to deliver. Filtering on the HRV control service happens in the
+    // Bluetooth controller, so other devices never wake the app.
+    private volatile ScanProfile mScanProfile = ScanProfile.hrvControllers();
+
+    // Pulls what the list needs out of a ScanResult, on the pipeline thread
+    private final ScanPipeline.ResultReader<ScanResult> mScanResultReader =
+            new ScanPipeline.ResultReader<ScanResult>() {
+                @Override
+                public String getAddress(ScanResult result) {
+                    // Only named devices are listed
+                    String name = getName(result);
+                    if (name == null || !mScanProfile.matchesName(name)) {
+                        return null;
+                    }
+                    return result.getDevice().getAddress();
+                }
+
+                @Override
+                public String getName(ScanResult result) {
+                    ScanRecord record = result.getScanRecord();
+                    String name = record != null ? record.getDeviceName() : null;
+                    return name != null ? name : result.getDevice().getName();
+                }
+
+                @Override
+                public int getRssi(ScanResult result) {
+                    return result.getRssi();
+                }
+
+                @Override
+                public long getTimestamp(ScanResult result) {
+                    return TimeUnit.NANOSECONDS.toMillis(result.getTimestampNanos());
+                }
+
+                @Override
+                public Object getDevice(ScanResult result) {
+                    return result.getDevice();
+                }
+            };
+
+    // Ends a scan when its window is up; only a scan that ran its full window removes the
+    // devices it did not hear from
+    private final Runnable mScanTimeout = new Runnable() {
+        @Override
+        public void run() {
+            endScan(true);
+        }
+    };
+
+    // Ends a scan early once it has found what it is going to find
+    private final Runnable mConvergenceCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning) {
+                return;
+            }
+            if (mScanScheduler.hasConverged(SystemClock.elapsedRealtime())) {
+                BleLog.d(LOG_TAG, "Scan converged after ms: ", SystemClock.elapsedRealtime() - mScanStartTime);
+                endScan(false);
+            } else {
+                mHandler.postDelayed(this, CONVERGENCE_CHECK_INTERVAL);
+            }
+        }
+    };
+
+    // Background scans that keep the list fresh while the screen is up
+    private final Runnable mScheduledScan = new Runnable() {
+        @Override
+        public void run() {
+            if (prerequisitesMet()) {
+                scanLeDevice(true);
+            } else {
+                mScanScheduler.pause();
+            }
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.begin(StartupTrace.FIRST_FRAME);
         setContentView(R.layout.activity_main);
         overridePendingTransition(R.anim.slide_in_left, R.anim.slide_out_right);
         mHandler = new Handler();
@@ -63,13 +189,43 @@ public class MainActivity extends AppCompatActivity {
         if (mBluetoothManager.getAdapter() != null)
             mBluetoothAdapter = mBluetoothManager.getAdapter();
 
-        // Check if necessary features are enabled / available
-        featureCheck();
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection, BIND_AUTO_CREATE);
+        // Off the main thread, the first read of the preferences goes to disk
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mKnownController = getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE)
+                        .getString(KEY_KNOWN_CONTROLLER, null);
+                if (mKnownController != null) {
+                    mScanScheduler.setTargets(Collections.singleton(mKnownController));
+                }
+            }
+        });
 
         // Get a handle to the RecyclerView
         mRecyclerView = findViewById(R.id.recyclerview);
         // Create an adapter and supply the data to be displayed
-        mAdapter = new ScanListAdapter(this, mDeviceList);
+        mAdapter = new ScanListAdapter(this);
+        mScanPipeline = new ScanPipeline<>(mScanExecutor, mScanResultReader,
+                new ScanPipeline.Sink() {
+                    @Override
+                    public void onSnapshot(ScanSnapshot snapshot) {
+                        mAdapter.submitSnapshot(snapshot);
+                        for (int i = 0; i < snapshot.size(); i++) {
+                            mScanScheduler.onDeviceSeen(snapshot.getAddress(i), snapshot.getLastSeen(i));
+                        }
+                    }
+                });
+        mScanPipeline.setPublishInterval(SCAN_PUBLISH_INTERVAL);
+        // Nearest controller on top
+        mScanPipeline.setRanked(true);
+        mScanPipeline.setStaleAfter(SCAN_STALE_AFTER);
+        mAdapter.setOnDeviceSelectedListener(new ScanListAdapter.OnDeviceSelectedListener() {
+            @Override
+            public void onDeviceSelected(BluetoothDevice device) {
+                connectInBackground(device.getAddress());
+            }
+        });
         // Connect the adapter with the RecyclerView
         mRecyclerView.setAdapter(mAdapter);
         // Give the RecyclerView a default layout manager
@@ -87,6 +243,92 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }
         );
+
+        // Once the first frame is up: check for Bluetooth, location and the permission, which
+        // may open a dialog or another activity, and scan straight away if all is there
+        getWindow().getDecorView().post(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.end(StartupTrace.FIRST_FRAME);
+                StartupTrace.begin(StartupTrace.PREREQUISITES);
+                startScan(null);
+            }
+        });
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_ENABLE_BT && resultCode == RESULT_OK) {
+            startScan(null);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_LOCATION_PERMISSION && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            startScan(null);
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Back from a device screen; the first start scans once the prerequisites are checked
+        if (mFullyDrawnReported && prerequisitesMet()) {
+            mScanScheduler.requestScan();
+            scheduleScan();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        // No scanning for a list nobody sees
+        mScanScheduler.pause();
+        mHandler.removeCallbacks(mScheduledScan);
+        if (mScanning) {
+            scanLeDevice(false);
+        }
+        super.onStop();
+    }
+
+    // Starts connecting while the device screen is still opening; that screen finds the link
+    // on its way up instead of starting from nothing. The device becomes the known controller.
+    private void connectInBackground(final String address) {
+        StartupTrace.begin(StartupTrace.CONNECT);
+        // A running scan slows down connection setup
+        if (mScanning) {
+            scanLeDevice(false);
+        }
+        mKnownController = address;
+        mScanScheduler.setTargets(Collections.singleton(address));
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit()
+                        .putString(KEY_KNOWN_CONTROLLER, address)
+                        .apply();
+            }
+        });
+        if (mBluetoothLeService != null) {
+            startService(new Intent(this, BluetoothLeService.class));
+            mBluetoothLeService.connect(address);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        mHandler.removeCallbacksAndMessages(null);
+        if (mScanning) {
+            scanLeDevice(false);
+        }
+        mScanExecutor.shutdownNow();
+        mAdapter.release();
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+        super.onDestroy();
     }
 
     @Override
@@ -100,65 +342,123 @@ public class MainActivity extends AppCompatActivity {
     private void scanLeDevice(final boolean enable) {
         final BluetoothLeScanner mBLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
         if (enable) {
-            // Stops scanning after a pre-defined scan period
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mProgressBar.setVisibility(View.GONE);
-                    mBLeScanner.stopScan(mScanCallback);
-                    mRefreshLayout.setRefreshing(false);
-                }
-            }, SCAN_PERIOD);
+            if (mScanning) {
+                return;
+            }
+            mHandler.removeCallbacks(mScheduledScan);
+            long now = SystemClock.elapsedRealtime();
+            int scanMode = mScanScheduler.onScanStarted(now);
+            // Stops scanning once the window is up, or earlier if the device set converges
+            mHandler.postDelayed(mScanTimeout, mScanScheduler.getWindow());
+            mHandler.postDelayed(mConvergenceCheck, CONVERGENCE_CHECK_INTERVAL);
+            StartupTrace.begin(StartupTrace.SCAN);
 
             mScanning = true;
             mProgressBar.setVisibility(View.VISIBLE);
-            mDeviceList.clear();
-            mAdapter.notifyDataSetChanged();
-            mBLeScanner.startScan(mScanCallback);
+            // Keep the current list on screen, devices that do not show up again are removed
+            // when this scan has run its full period
+            mScanStartTime = now;
+            mScanPipeline.start();
+            mBLeScanner.startScan(mScanProfile.buildFilters(), buildScanSettings(scanMode), mScanCallback);
         } else {
-            mScanning = false;
-            mBLeScanner.stopScan(mScanCallback);
-            mRefreshLayout.setRefreshing(false);
+            endScan(false);
         }
     }
 
+    // complete is false for a scan cut short, whose list keeps devices it had no time to hear from
+    private void endScan(boolean complete) {
+        mHandler.removeCallbacks(mScanTimeout);
+        mHandler.removeCallbacks(mConvergenceCheck);
+        mScanning = false;
+        mProgressBar.setVisibility(View.GONE);
+        stopScanning(mBluetoothAdapter.getBluetoothLeScanner(), complete);
+        mRefreshLayout.setRefreshing(false);
+        StartupTrace.end(StartupTrace.SCAN);
+        if (!mFullyDrawnReported) {
+            // The list is as complete as the first launch gets it
+            mFullyDrawnReported = true;
+            reportFullyDrawn();
+        }
+        mScanScheduler.onScanStopped(SystemClock.elapsedRealtime());
+        scheduleScan();
+    }
+
+    // Posts the next scan for when the scheduler wants it and the start limit allows it
+    private void scheduleScan() {
+        mHandler.removeCallbacks(mScheduledScan);
+        long delay = mScanScheduler.untilNextScan(SystemClock.elapsedRealtime());
+        if (delay >= 0) {
+            mHandler.postDelayed(mScheduledScan, delay);
+        }
+    }
+
+    private void stopScanning(BluetoothLeScanner scanner, boolean removeUnseen) {
+        // Deliver anything the controller is still holding before stopping
+        scanner.flushPendingScanResults(mScanCallback);
+        scanner.stopScan(mScanCallback);
+        mScanPipeline.stop();
+        if (removeUnseen) {
+            mScanPipeline.removeSeenBefore(mScanStartTime);
+        }
+    }
+
+    // The scheduler picks the mode; the profile still decides everything else
+    private ScanSettings buildScanSettings(int scanMode) {
+        ScanSettings.Builder builder = mScanProfile.applyTo(new ScanSettings.Builder())
+                .setScanMode(scanMode);
+        if (USE_HARDWARE_BATCHING && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(BATCH_REPORT_DELAY);
+        }
+        return builder.build();
+    }
+
     private ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            // RSSI = result.getRssi();
-            Log.i("callbackType", String.valueOf(callbackType));
-            Log.i("result", result.toString());
-            Log.d(LOG_TAG, "RSSI Value: ");
-            Log.d(LOG_TAG, Integer.toString(result.getRssi()));
-            BluetoothDevice btDevice = result.getDevice();
-            if (btDevice.getName() != null && btDevice.getAddress() != null) {
-                if (!mDeviceList.contains(btDevice)) {
-                    Log.d(LOG_TAG, "Device found: " + btDevice.getName());
-                    Log.d(LOG_TAG, btDevice.getAddress());
-                    mDeviceList.addLast(btDevice);
-                }
-            }
-            mAdapter.notifyDataSetChanged();
+            // Runs on the main thread, so hand the result over and return
+            mScanPipeline.offer(result);
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            for (ScanResult sr : results) {
-                Log.i("ScanResult - Results", sr.toString());
-            }
+            mScanPipeline.offerAll(results);
         }
 
         @Override
         public void onScanFailed(int errorCode) {
-            Log.e("Scan Failed", "Error Code: " + errorCode);
+            BleLog.e("Scan Failed", "Error Code: " + errorCode);
         }
     };
 
+    // Changes what the next scan looks for
+    public void setScanProfile(ScanProfile profile) {
+        mScanProfile = profile;
+    }
+
     // Scan button's OnClick event
+    // Starts a low latency scan, or as soon as the platform's start limit allows one; the refresh
+    // indicator shows until then
     public void startScan(View view) {
-        if (featureCheck())
-            scanLeDevice(true);
+        if (!featureCheck()) {
+            mRefreshLayout.setRefreshing(false);
+            return;
+        }
+        StartupTrace.end(StartupTrace.PREREQUISITES);
+        if (mScanning) {
+            return;
+        }
+        mScanScheduler.requestScan();
+        if (mScanScheduler.untilNextScan(SystemClock.elapsedRealtime()) > 0) {
+            mRefreshLayout.setRefreshing(true);
+        }
+        scheduleScan();
+    }
+
+    // Like featureCheck, without asking the user for anything
+    private boolean prerequisitesMet() {
+        return mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED;
     }
 
     // Check if location services and bluetooth is enabled
@@ -178,7 +478,7 @@ public class MainActivity extends AppCompatActivity {
                 Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             ActivityCompat.requestPermissions(MainActivity.this,
                     new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
-                    2);
+                    REQUEST_LOCATION_PERMISSION);
             return false;
         }
         return true;
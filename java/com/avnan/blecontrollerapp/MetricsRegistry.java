@@ -0,0 +1,52 @@
+package com.avnan.blecontrollerapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// DeviceMetrics for every controller the app has talked to since it started
+// Looking a device up allocates only the first time it is seen. Export writes every device in
+// address order, so two exports can be diffed.
+// Thread safe. Android-free.
+public class MetricsRegistry {
+    private final ConcurrentHashMap<String, DeviceMetrics> mDevices = new ConcurrentHashMap<>();
+
+    public DeviceMetrics forDevice(String address) {
+        DeviceMetrics metrics = mDevices.get(address);
+        if (metrics == null) {
+            DeviceMetrics created = new DeviceMetrics(address);
+            metrics = mDevices.putIfAbsent(address, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    // null if nothing was recorded for the address
+    public DeviceMetrics peek(String address) {
+        return mDevices.get(address);
+    }
+
+    public List<String> addresses() {
+        List<String> addresses = new ArrayList<>(mDevices.keySet());
+        Collections.sort(addresses);
+        return addresses;
+    }
+
+    public void clear() {
+        mDevices.clear();
+    }
+
+    public void writeTo(Appendable out, long now) throws IOException {
+        for (String address : addresses()) {
+            DeviceMetrics metrics = mDevices.get(address);
+            if (metrics != null) {
+                metrics.writeTo(out, now);
+                out.append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands notification payloads from the Bluetooth callback thread to a worker thread
+// Single consumer. GATT callbacks of different links may arrive on different Binder threads, so
+// producers take a lock among themselves; it is uncontended with one link and never shared with
+// the consumer, which stays lock free. Every slot owns a byte array that the producer copies the
+// payload into, so the steady state allocates nothing; a slot only grows if a payload is longer
+// than anything it held before. When the ring is full new notifications are dropped and counted
+// rather than blocking the callback thread.
+// Android-free.
+public class NotificationRing {
+    public interface Consumer {
+        // value is only valid for the duration of the call
+        void onNotification(String address, UUID characteristic, byte[] value, int length, long timestampNanos);
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_SLOT_SIZE = 32;
+
+    private final int mMask;
+    private final String[] mAddresses;
+    private final UUID[] mCharacteristics;
+    private final byte[][] mValues;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+
+    // Next slot the producer writes, next slot the consumer reads. Only ever increase.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile int mHighWaterMark;
+
+    public NotificationRing() {
+        this(DEFAULT_CAPACITY, DEFAULT_SLOT_SIZE);
+    }
+
+    // capacity is rounded up to a power of two
+    public NotificationRing(int capacity, int slotSize) {
+        if (capacity < 1 || slotSize < 1) {
+            throw new IllegalArgumentException("Need at least one slot of at least one byte");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mAddresses = new String[size];
+        mCharacteristics = new UUID[size];
+        mValues = new byte[size][slotSize];
+        mLengths = new int[size];
+        mTimestamps = new long[size];
+    }
+
+    // Producer side. Returns false if the ring is full and the notification was dropped.
+    public synchronized boolean offer(String address, UUID characteristic, byte[] value, long timestampNanos) {
+        long head = mHead.get();
+        int depth = (int) (head - mTail.get());
+        if (depth > mMask) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) head & mMask;
+        int length = value == null ? 0 : value.length;
+        if (mValues[slot].length < length) {
+            mValues[slot] = new byte[length];
+        }
+        if (length > 0) {
+            System.arraycopy(value, 0, mValues[slot], 0, length);
+        }
+        mAddresses[slot] = address;
+        mCharacteristics[slot] = characteristic;
+        mLengths[slot] = length;
+        mTimestamps[slot] = timestampNanos;
+        // Publishes the slot contents to the consumer
+        mHead.lazySet(head + 1);
+        if (depth + 1 > mHighWaterMark) {
+            mHighWaterMark = depth + 1;
+        }
+        return true;
+    }
+
+    // Consumer side. Hands every waiting notification to consumer and returns how many there were.
+    public int drain(Consumer consumer) {
+        long tail = mTail.get();
+        long head = mHead.get();
+        int count = 0;
+        while (tail != head) {
+            int slot = (int) tail & mMask;
+            consumer.onNotification(mAddresses[slot], mCharacteristics[slot], mValues[slot],
+                    mLengths[slot], mTimestamps[slot]);
+            mAddresses[slot] = null;
+            mCharacteristics[slot] = null;
+            tail++;
+            count++;
+            // Frees the slot for the producer
+            mTail.lazySet(tail);
+            if (tail == head) {
+                head = mHead.get();
+            }
+        }
+        return count;
+    }
+
+    // Notifications waiting to be drained
+    public int size() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    // Deepest the ring has been since it was created
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,168 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Brings dropped links back without the user pressing connect again
+// Only addresses the user asked to connect to are reconnected; disconnecting or closing an
+// address forgets it. Attempts back off exponentially with jitter, so units that drop together
+// do not all retry on the same tick. Once the direct attempts run out, devices we have talked to
+// before are handed to a background (autoConnect) connection, which the Bluetooth controller keeps
+// open at a low duty cycle until the device comes back into range.
+// Thread safe. Android-free; the owner does the actual connecting.
+public class ReconnectScheduler {
+    public interface Connector {
+        // Opens a new link. background selects autoConnect. Returns false if the link could not
+        // be started now, which counts as a failed attempt.
+        boolean reconnect(String address, boolean background);
+
+        // True if the device may be waited for in the background once direct attempts run out
+        boolean isKnown(String address);
+    }
+
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final int DEFAULT_MAX_DIRECT_ATTEMPTS = 6;
+
+    private static final class Target {
+        int mAttempts;
+        ScheduledFuture<?> mPending;
+    }
+
+    private final Connector mConnector;
+    private final ScheduledExecutorService mTimer;
+    private final HashMap<String, Target> mTargets = new HashMap<>();
+    private final Random mRandom = new Random();
+    private long mBaseDelay = DEFAULT_BASE_DELAY_MS;
+    private long mMaxDelay = DEFAULT_MAX_DELAY_MS;
+    private int mMaxDirectAttempts = DEFAULT_MAX_DIRECT_ATTEMPTS;
+
+    public ReconnectScheduler(Connector connector, ScheduledExecutorService timer) {
+        mConnector = connector;
+        mTimer = timer;
+    }
+
+    public synchronized void setBackoff(long baseDelayMillis, long maxDelayMillis, int maxDirectAttempts) {
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis || maxDirectAttempts < 1) {
+            throw new IllegalArgumentException("Invalid backoff");
+        }
+        mBaseDelay = baseDelayMillis;
+        mMaxDelay = maxDelayMillis;
+        mMaxDirectAttempts = maxDirectAttempts;
+    }
+
+    // The user wants this address connected. Resets its backoff.
+    public synchronized void want(String address) {
+        Target target = mTargets.get(address);
+        if (target == null) {
+            mTargets.put(address, new Target());
+        } else {
+            cancel(target);
+            target.mAttempts = 0;
+        }
+    }
+
+    public synchronized boolean isWanted(String address) {
+        return mTargets.containsKey(address);
+    }
+
+    public synchronized List<String> getWantedAddresses() {
+        return new ArrayList<>(mTargets.keySet());
+    }
+
+    // The user no longer wants this address connected
+    public synchronized void forget(String address) {
+        Target target = mTargets.remove(address);
+        if (target != null) {
+            cancel(target);
+        }
+    }
+
+    public synchronized void forgetAll() {
+        for (Target target : mTargets.values()) {
+            cancel(target);
+        }
+        mTargets.clear();
+    }
+
+    // The link is up; the next drop starts backing off from the beginning again
+    public synchronized void onConnected(String address) {
+        Target target = mTargets.get(address);
+        if (target != null) {
+            target.mAttempts = 0;
+        }
+    }
+
+    // The link dropped or a connection attempt failed
+    // Returns the delay before the next attempt, or -1 if the address is not wanted or there is
+    // nothing more to try
+    public synchronized long onLinkLost(String address) {
+        Target target = mTargets.get(address);
+        if (target == null) {
+            return -1;
+        }
+        cancel(target);
+        boolean background = target.mAttempts >= mMaxDirectAttempts;
+        if (background && !mConnector.isKnown(address)) {
+            mTargets.remove(address);
+            return -1;
+        }
+        long delay;
+        if (!background) {
+            delay = delayFor(target.mAttempts);
+        } else if (target.mAttempts == mMaxDirectAttempts) {
+            // Hand over to the controller straight away
+            delay = 0;
+        } else {
+            // A background connection that could not even be started, or that dropped again
+            delay = mMaxDelay;
+        }
+        target.mAttempts++;
+        schedule(address, target, delay, background);
+        return delay;
+    }
+
+    public synchronized int getAttempts(String address) {
+        Target target = mTargets.get(address);
+        return target == null ? 0 : target.mAttempts;
+    }
+
+    // "Equal jitter": half of the exponential delay is fixed, the other half random
+    long delayFor(int attempt) {
+        long delay = mBaseDelay << Math.min(attempt, 20);
+        if (delay <= 0 || delay > mMaxDelay) {
+            delay = mMaxDelay;
+        }
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    private void schedule(final String address, final Target target, long delay, final boolean background) {
+        target.mPending = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ReconnectScheduler.this) {
+                    if (mTargets.get(address) != target) {
+                        return;
+                    }
+                    target.mPending = null;
+                }
+                if (!mConnector.reconnect(address, background)) {
+                    onLinkLost(address);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void cancel(Target target) {
+        if (target.mPending != null) {
+            target.mPending.cancel(false);
+            target.mPending = null;
+        }
+    }
+}
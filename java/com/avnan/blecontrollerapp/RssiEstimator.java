@@ -0,0 +1,71 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.Arrays;
+
+// Smoothed signal strength for a set of devices, one slot per device
+// Each slot runs a scalar Kalman filter: the true RSSI is taken to drift as a random walk (people
+// and tablets move) and every advertisement to measure it through multipath fading of several
+// dB. The longer a device has not been heard, the more its estimate is allowed to move on the
+// next sample, so devices heard rarely still converge quickly. State is kept in primitive arrays
+// indexed by slot; the owner keeps slots in step with its own storage.
+// Not thread safe. Android-free; times are in milliseconds.
+public class RssiEstimator {
+    // dB^2 the true RSSI may drift per second
+    private static final float PROCESS_NOISE_PER_S = 4f;
+    // dB^2 of a single reading, i.e. about 6 dB of fading
+    private static final float MEASUREMENT_NOISE = 36f;
+
+    private float[] mEstimate;
+    private float[] mVariance;
+    private long[] mUpdated;
+
+    public RssiEstimator(int capacity) {
+        mEstimate = new float[capacity];
+        mVariance = new float[capacity];
+        mUpdated = new long[capacity];
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= mEstimate.length) {
+            return;
+        }
+        mEstimate = Arrays.copyOf(mEstimate, capacity);
+        mVariance = Arrays.copyOf(mVariance, capacity);
+        mUpdated = Arrays.copyOf(mUpdated, capacity);
+    }
+
+    // Starts a slot from its first reading
+    public void reset(int slot, int rssi, long timestamp) {
+        mEstimate[slot] = rssi;
+        mVariance[slot] = MEASUREMENT_NOISE;
+        mUpdated[slot] = timestamp;
+    }
+
+    // Folds in one reading. Returns the new estimate.
+    public float update(int slot, int rssi, long timestamp) {
+        float elapsed = Math.max(0, timestamp - mUpdated[slot]) / 1000f;
+        float predicted = mVariance[slot] + PROCESS_NOISE_PER_S * elapsed;
+        float gain = predicted / (predicted + MEASUREMENT_NOISE);
+        mEstimate[slot] += gain * (rssi - mEstimate[slot]);
+        mVariance[slot] = (1 - gain) * predicted;
+        if (timestamp > mUpdated[slot]) {
+            mUpdated[slot] = timestamp;
+        }
+        return mEstimate[slot];
+    }
+
+    public float getEstimate(int slot) {
+        return mEstimate[slot];
+    }
+
+    // Uncertainty of the estimate as of its last reading, in dB^2
+    public float getVariance(int slot) {
+        return mVariance[slot];
+    }
+
+    public void move(int from, int to) {
+        mEstimate[to] = mEstimate[from];
+        mVariance[to] = mVariance[from];
+        mUpdated[to] = mUpdated[from];
+    }
+}
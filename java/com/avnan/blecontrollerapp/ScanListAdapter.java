@@ -3,7 +3,7 @@ package com.avnan.blecontrollerapp;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -11,44 +11,196 @@ import android.widget.TextView;
 
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ScanListAdapter extends RecyclerView.Adapter<ScanListAdapter.DeviceViewHolder>{
     public static final String EXTRA_DEVICE_NAME = "com.avnan.blerecyclerview.extra.DEVICE_NAME";
     public static final String EXTRA_DEVICE_ADDRESS = "com.avnan.blerecyclerview.extra.DEVICE_ADDRESS";
     public static final String EXTRA_DEVICE = "com.avnan.blecontrollerapp.extra.DEVICE";
 
+    // Bind payload used when nothing but the signal strength changed
+    private static final Object PAYLOAD_RSSI = new Object();
+
+    // Gets to act on a tap before the device screen opens, e.g. to start connecting
+    public interface OnDeviceSelectedListener {
+        void onDeviceSelected(BluetoothDevice device);
+    }
+
     class DeviceViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener{
         public final TextView deviceNameView;
         public final TextView deviceAddressView;
+        // Optional, only present if the item layout has an @id/deviceRssi label
+        public final TextView deviceRssiView;
         final ScanListAdapter mAdapter;
+        // Reused for the RSSI label so an RSSI-only rebind does not allocate
+        private final char[] mRssiText = new char[8];
 
         public DeviceViewHolder(View itemView, ScanListAdapter adapter) {
             super(itemView);
             deviceNameView = itemView.findViewById(R.id.deviceName);
             deviceAddressView = itemView.findViewById(R.id.deviceAddress);
+            deviceRssiView = itemView.findViewById(R.id.deviceRssi);
             this.mAdapter = adapter;
             itemView.setOnClickListener(this);
         }
 
+        void bindRssi(int rssi) {
+            if (deviceRssiView == null) {
+                return;
+            }
+            // "-xxx dBm"
+            int length = 0;
+            int magnitude = rssi;
+            if (rssi < 0) {
+                mRssiText[length++] = '-';
+                magnitude = -rssi;
+            }
+            if (magnitude >= 100) {
+                mRssiText[length++] = (char) ('0' + (magnitude / 100) % 10);
+            }
+            if (magnitude >= 10) {
+                mRssiText[length++] = (char) ('0' + (magnitude / 10) % 10);
+            }
+            mRssiText[length++] = (char) ('0' + magnitude % 10);
+            mRssiText[length++] = ' ';
+            mRssiText[length++] = 'd';
+            mRssiText[length++] = 'B';
+            mRssiText[length++] = 'm';
+            deviceRssiView.setText(mRssiText, 0, length);
+        }
+
         @Override
         public void onClick(View view) {
-            int mPosition = getLayoutPosition();
+            int mPosition = getAdapterPosition();
+            if (mPosition == RecyclerView.NO_POSITION) {
+                return;
+            }
             // Access the affected device
-            BluetoothDevice device = mDeviceList.get(mPosition);
-            Log.d("Adapter", "Clicked on " + device.getName());
+            BluetoothDevice device = mSnapshot.getDevice(mPosition);
+            BleLog.d("Adapter", "Clicked on ", device.getName());
+            if (mAdapter.mListener != null) {
+                mAdapter.mListener.onDeviceSelected(device);
+            }
             Intent intent = new Intent(view.getContext(), DeviceDetailsActivity.class);
             intent.putExtra(EXTRA_DEVICE, device);
             view.getContext().startActivity(intent);
         }
     }
 
-    private final LinkedList<BluetoothDevice> mDeviceList;
     private LayoutInflater mInflater;
+    // What the RecyclerView currently shows. Only touched on the main thread.
+    private ScanSnapshot mSnapshot = ScanSnapshot.EMPTY;
+    // The last snapshot handed to submitSnapshot. Only touched on the diff thread.
+    private ScanSnapshot mLastSubmitted = ScanSnapshot.EMPTY;
+    private final ExecutorService mDiffExecutor = Executors.newSingleThreadExecutor();
+    // Diffed snapshots waiting for the next frame, oldest first
+    private final ArrayDeque<PendingUpdate> mPendingUpdates = new ArrayDeque<>();
+    private final Choreographer mChoreographer;
+    private boolean mFrameCallbackPosted;
+    private boolean mReleased;
+    private OnDeviceSelectedListener mListener;
+
+    private static final class PendingUpdate {
+        final ScanSnapshot mSnapshot;
+        final ListDiff.Result mDiff;
+
+        PendingUpdate(ScanSnapshot snapshot, ListDiff.Result diff) {
+            mSnapshot = snapshot;
+            mDiff = diff;
+        }
+    }
+
+    // Applies everything that was diffed since the last frame, right before it is drawn
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            while (true) {
+                PendingUpdate update;
+                synchronized (mPendingUpdates) {
+                    update = mPendingUpdates.pollFirst();
+                    if (update == null) {
+                        mFrameCallbackPosted = false;
+                        return;
+                    }
+                }
+                mSnapshot = update.mSnapshot;
+                update.mDiff.dispatchTo(mUpdateCallback);
+            }
+        }
+    };
+
+    private final ListDiff.UpdateCallback mUpdateCallback = new ListDiff.UpdateCallback() {
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position, count);
+        }
 
-    public ScanListAdapter(Context context, LinkedList<BluetoothDevice> deviceList) {
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, int changes) {
+            notifyItemRangeChanged(position, count,
+                    changes == ScanSnapshot.CHANGE_RSSI ? PAYLOAD_RSSI : null);
+        }
+    };
+
+    // Must be created on the main thread
+    public ScanListAdapter(Context context) {
         mInflater = LayoutInflater.from(context);
-        this.mDeviceList = deviceList;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    // Shows a new version of the list. May be called from any thread.
+    // The diff against the previously submitted snapshot is computed on a background thread,
+    // then the snapshot is swapped in and the minimal notifications are sent on the main thread
+    // at the start of the next frame. Snapshots are applied in the order they were submitted.
+    public void submitSnapshot(final ScanSnapshot snapshot) {
+        mDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ListDiff.Result diff = ScanSnapshot.diff(mLastSubmitted, snapshot);
+                mLastSubmitted = snapshot;
+                if (diff.isEmpty()) {
+                    return;
+                }
+                synchronized (mPendingUpdates) {
+                    if (mReleased) {
+                        return;
+                    }
+                    mPendingUpdates.addLast(new PendingUpdate(snapshot, diff));
+                    if (!mFrameCallbackPosted) {
+                        mFrameCallbackPosted = true;
+                        mChoreographer.postFrameCallback(mFrameCallback);
+                    }
+                }
+            }
+        });
+    }
+
+    public void setOnDeviceSelectedListener(OnDeviceSelectedListener listener) {
+        mListener = listener;
+    }
+
+    // Stops the diff thread, call when the owning activity is destroyed
+    public void release() {
+        mDiffExecutor.shutdownNow();
+        synchronized (mPendingUpdates) {
+            mReleased = true;
+            mPendingUpdates.clear();
+        }
+        mChoreographer.removeFrameCallback(mFrameCallback);
     }
 
     @Override
@@ -59,13 +211,39 @@ public class ScanListAdapter extends RecyclerView.Adapter<ScanListAdapter.Device
 
     @Override
     public void onBindViewHolder(ScanListAdapter.DeviceViewHolder holder, int position) {
-        BluetoothDevice mCurrent = mDeviceList.get(position);
-        holder.deviceNameView.setText(mCurrent.getName());
-        holder.deviceAddressView.setText(mCurrent.getAddress());
+        holder.deviceNameView.setText(mSnapshot.getName(position));
+        holder.deviceAddressView.setText(mSnapshot.getAddress(position));
+        holder.bindRssi(mSnapshot.getRssi(position));
+    }
+
+    @Override
+    public void onBindViewHolder(ScanListAdapter.DeviceViewHolder holder, int position, List<Object> payloads) {
+        // Partial bind when every pending change is RSSI only
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_RSSI) {
+                onBindViewHolder(holder, position);
+                return;
+            }
+        }
+        holder.bindRssi(mSnapshot.getRssi(position));
+    }
+
+    // Addresses of the devices on screen, in list order, e.g. the target of a fleet dispatch.
+    // Main thread only.
+    public List<String> getAddresses() {
+        List<String> addresses = new ArrayList<>(mSnapshot.size());
+        for (int i = 0; i < mSnapshot.size(); i++) {
+            addresses.add(mSnapshot.getAddress(i));
+        }
+        return addresses;
     }
 
     @Override
     public int getItemCount() {
-        return mDeviceList.size();
+        return mSnapshot.size();
     }
 }
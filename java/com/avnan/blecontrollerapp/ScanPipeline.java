@@ -0,0 +1,228 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Moves scan result handling off the thread that receives the callbacks
+// offer() only appends a reference to a buffer, so the scan callback returns immediately even
+// during an advertisement storm. While the pipeline is running, a task on the executor swaps the
+// buffer out every publish interval, folds the results into the ScanResultStore it owns and, if
+// anything changed, hands one snapshot to the sink. The UI therefore sees at most one update per
+// interval no matter how many packets arrive.
+// Snapshots can list devices in discovery order or ranked by smoothed RSSI, nearest first. With
+// a stale age set, devices that have not advertised for that long while the pipeline kept
+// receiving are dropped as results are drained; time only counts once the current run has been
+// receiving for that long, so a restart after a pause does not empty the list.
+// The raw result type is opaque here; a ResultReader pulls the fields out on the executor thread.
+// Android-free.
+public class ScanPipeline<R> {
+    public interface ResultReader<R> {
+        // Return null to ignore the result
+        String getAddress(R result);
+
+        String getName(R result);
+
+        int getRssi(R result);
+
+        // Milliseconds on the same clock used for removeSeenBefore
+        long getTimestamp(R result);
+
+        Object getDevice(R result);
+    }
+
+    public interface Sink {
+        // Called on the executor thread
+        void onSnapshot(ScanSnapshot snapshot);
+    }
+
+    // 10 updates per second
+    public static final long DEFAULT_PUBLISH_INTERVAL_MS = 100;
+    public static final int DEFAULT_BUFFER_CAPACITY = 1024;
+
+    private final ScheduledExecutorService mExecutor;
+    private final ResultReader<R> mReader;
+    private final Sink mSink;
+    private final ScanResultStore<Object> mStore = new ScanResultStore<>();
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Filled by offer(), swapped with mDraining by the executor
+    private Object[] mIncoming;
+    private Object[] mDraining;
+    private int mIncomingCount;
+    private long mDroppedCount;
+
+    private long mPublishIntervalMs = DEFAULT_PUBLISH_INTERVAL_MS;
+    private ScheduledFuture<?> mDrainFuture;
+    private volatile boolean mRanked;
+    private volatile long mStaleAfterMs;
+    // Only touched on the executor thread
+    private boolean mDirty;
+    // Timestamps of the first and newest result since start(), MIN_VALUE for none yet
+    private long mRunStart = Long.MIN_VALUE;
+    private long mNewest = Long.MIN_VALUE;
+
+    public ScanPipeline(ScheduledExecutorService executor, ResultReader<R> reader, Sink sink) {
+        this(executor, reader, sink, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    public ScanPipeline(ScheduledExecutorService executor, ResultReader<R> reader, Sink sink,
+                        int bufferCapacity) {
+        mExecutor = executor;
+        mReader = reader;
+        mSink = sink;
+        mIncoming = new Object[bufferCapacity];
+        mDraining = new Object[bufferCapacity];
+    }
+
+    // Takes effect the next time the pipeline is started
+    public synchronized void setPublishInterval(long publishIntervalMs) {
+        if (publishIntervalMs <= 0) {
+            throw new IllegalArgumentException("Publish interval must be positive");
+        }
+        mPublishIntervalMs = publishIntervalMs;
+    }
+
+    // Publish snapshots strongest first (by smoothed RSSI) instead of in discovery order
+    // Takes effect with the next snapshot.
+    public void setRanked(boolean ranked) {
+        mRanked = ranked;
+    }
+
+    // Devices not heard for this long are dropped automatically; 0 keeps them until
+    // removeSeenBefore()
+    public void setStaleAfter(long staleAfterMs) {
+        if (staleAfterMs < 0) {
+            throw new IllegalArgumentException("Stale age must not be negative");
+        }
+        mStaleAfterMs = staleAfterMs;
+    }
+
+    // Starts publishing. Results offered while stopped are buffered until the next start.
+    public synchronized void start() {
+        if (mDrainFuture == null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mRunStart = Long.MIN_VALUE;
+                }
+            });
+            mDrainFuture = mExecutor.scheduleAtFixedRate(mDrainTask, mPublishIntervalMs,
+                    mPublishIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Stops the periodic task after publishing whatever is still buffered
+    public synchronized void stop() {
+        if (mDrainFuture != null) {
+            mDrainFuture.cancel(false);
+            mDrainFuture = null;
+            mExecutor.execute(mDrainTask);
+        }
+    }
+
+    // Cheap enough for the scan callback. If the buffer is full the result is dropped; the
+    // device will advertise again.
+    public void offer(R result) {
+        synchronized (this) {
+            if (mIncomingCount == mIncoming.length) {
+                mDroppedCount++;
+                return;
+            }
+            mIncoming[mIncomingCount++] = result;
+        }
+    }
+
+    // For batched hardware results
+    public void offerAll(List<R> results) {
+        synchronized (this) {
+            for (int i = 0; i < results.size(); i++) {
+                if (mIncomingCount == mIncoming.length) {
+                    mDroppedCount += results.size() - i;
+                    return;
+                }
+                mIncoming[mIncomingCount++] = results.get(i);
+            }
+        }
+    }
+
+    // Drops devices not heard since the given time and publishes the result
+    public void removeSeenBefore(final long timestamp) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drainBuffer();
+                if (mStore.removeSeenBefore(timestamp) > 0) {
+                    mDirty = true;
+                }
+                publish();
+            }
+        });
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private void drain() {
+        drainBuffer();
+        removeStale();
+        publish();
+    }
+
+    // Executor thread only
+    private void drainBuffer() {
+        Object[] batch;
+        int count;
+        synchronized (this) {
+            batch = mIncoming;
+            count = mIncomingCount;
+            mIncoming = mDraining;
+            mIncomingCount = 0;
+            mDraining = batch;
+        }
+        for (int i = 0; i < count; i++) {
+            @SuppressWarnings("unchecked")
+            R result = (R) batch[i];
+            String address = mReader.getAddress(result);
+            if (address != null) {
+                long timestamp = mReader.getTimestamp(result);
+                mStore.update(address, mReader.getName(result), mReader.getDevice(result),
+                        mReader.getRssi(result), timestamp);
+                mDirty = true;
+                if (mRunStart == Long.MIN_VALUE) {
+                    mRunStart = timestamp;
+                }
+                if (timestamp > mNewest) {
+                    mNewest = timestamp;
+                }
+            }
+        }
+        Arrays.fill(batch, 0, count, null);
+    }
+
+    // Executor thread only
+    private void removeStale() {
+        long staleAfter = mStaleAfterMs;
+        if (staleAfter == 0 || mRunStart == Long.MIN_VALUE || mNewest - mRunStart < staleAfter) {
+            return;
+        }
+        if (mStore.removeSeenBefore(mNewest - staleAfter) > 0) {
+            mDirty = true;
+        }
+    }
+
+    private void publish() {
+        if (mDirty) {
+            mDirty = false;
+            mSink.onSnapshot(mRanked ? mStore.rankedSnapshot() : mStore.snapshot());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.avnan.blecontrollerapp;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+// What a scan should look for and how hard the controller should look
+// The service UUID and manufacturer data criteria are pushed down to the Bluetooth controller
+// as a ScanFilter, so advertisements that do not match never reach the app at all. ScanFilter
+// can only match a complete device name, so a name prefix is checked in software by
+// matchesName() on the scan pipeline thread.
+public class ScanProfile {
+    private final UUID mServiceUuid;
+    private final String mNamePrefix;
+    private final int mManufacturerId;
+    private final byte[] mManufacturerData;
+    private final byte[] mManufacturerDataMask;
+    private final int mScanMode;
+
+    private ScanProfile(Builder builder) {
+        mServiceUuid = builder.mServiceUuid;
+        mNamePrefix = builder.mNamePrefix;
+        mManufacturerId = builder.mManufacturerId;
+        mManufacturerData = builder.mManufacturerData;
+        mManufacturerDataMask = builder.mManufacturerDataMask;
+        mScanMode = builder.mScanMode;
+    }
+
+    // Only devices advertising the HRV control service
+    public static ScanProfile hrvControllers() {
+        return new Builder()
+                .setServiceUuid(GattAttributes.HRV_CONTROL_SERV_UUID)
+                .build();
+    }
+
+    // Every named device, the way the app scanned before filtering existed
+    public static ScanProfile allDevices() {
+        return new Builder().build();
+    }
+
+    // Filters for BluetoothLeScanner.startScan. Null means no hardware filtering.
+    public List<ScanFilter> buildFilters() {
+        if (mServiceUuid == null && mManufacturerData == null) {
+            return null;
+        }
+        // Criteria within one filter must all match
+        ScanFilter.Builder filter = new ScanFilter.Builder();
+        if (mServiceUuid != null) {
+            filter.setServiceUuid(new ParcelUuid(mServiceUuid));
+        }
+        if (mManufacturerData != null) {
+            filter.setManufacturerData(mManufacturerId, mManufacturerData, mManufacturerDataMask);
+        }
+        List<ScanFilter> filters = new ArrayList<>(1);
+        filters.add(filter.build());
+        return Collections.unmodifiableList(filters);
+    }
+
+    public ScanSettings.Builder applyTo(ScanSettings.Builder settings) {
+        return settings.setScanMode(mScanMode);
+    }
+
+    public boolean hasHardwareFilter() {
+        return mServiceUuid != null || mManufacturerData != null;
+    }
+
+    // The software half of the filter, for the criteria the controller cannot check
+    public boolean matchesName(String name) {
+        return mNamePrefix == null || (name != null && name.startsWith(mNamePrefix));
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    public static class Builder {
+        private UUID mServiceUuid;
+        private String mNamePrefix;
+        private int mManufacturerId = -1;
+        private byte[] mManufacturerData;
+        private byte[] mManufacturerDataMask;
+        private int mScanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+
+        public Builder() {
+        }
+
+        public Builder(ScanProfile profile) {
+            mServiceUuid = profile.mServiceUuid;
+            mNamePrefix = profile.mNamePrefix;
+            mManufacturerId = profile.mManufacturerId;
+            mManufacturerData = profile.mManufacturerData;
+            mManufacturerDataMask = profile.mManufacturerDataMask;
+            mScanMode = profile.mScanMode;
+        }
+
+        public Builder setServiceUuid(UUID serviceUuid) {
+            mServiceUuid = serviceUuid;
+            return this;
+        }
+
+        public Builder setNamePrefix(String namePrefix) {
+            mNamePrefix = namePrefix;
+            return this;
+        }
+
+        // mask may be null to require an exact match of data
+        public Builder setManufacturerData(int manufacturerId, byte[] data, byte[] mask) {
+            if (mask != null && mask.length != data.length) {
+                throw new IllegalArgumentException("Mask and data must be the same length");
+            }
+            mManufacturerId = manufacturerId;
+            mManufacturerData = data.clone();
+            mManufacturerDataMask = mask == null ? null : mask.clone();
+            return this;
+        }
+
+        // One of the ScanSettings.SCAN_MODE_* constants
+        public Builder setScanMode(int scanMode) {
+            mScanMode = scanMode;
+            return this;
+        }
+
+        public ScanProfile build() {
+            return new ScanProfile(this);
+        }
+    }
+}
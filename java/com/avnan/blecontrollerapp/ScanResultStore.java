@@ -0,0 +1,255 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Devices seen during a scan, keyed by MAC address
+// Lookup by address is a single hash probe and lookup by position is an array index, so the
+// scan callback and the RecyclerView adapter both stay O(1) per call no matter how many
+// advertisers are around. Devices keep the order in which they were first seen. Alongside each
+// device the store tracks the last RSSI, when it was last heard and how many advertisements
+// have been received from it.
+// The store also keeps a smoothed RSSI per device (see RssiEstimator) and a ranking by it,
+// strongest first, which every advertisement adjusts in place by moving its device past its
+// neighbours. A device only overtakes another once its estimate is RANK_HYSTERESIS_DB stronger,
+// so units at about the same distance do not trade places on every packet.
+// Not thread safe; confine it to one thread. Android-free, the device type is whatever the
+// caller wants to hand back to the UI (a BluetoothDevice in the app).
+public class ScanResultStore<D> {
+    private static final int INITIAL_CAPACITY = 16;
+    public static final float RANK_HYSTERESIS_DB = 2f;
+
+    private final HashMap<String, Integer> mIndex = new HashMap<>();
+    private Object[] mDevices = new Object[INITIAL_CAPACITY];
+    private String[] mAddresses = new String[INITIAL_CAPACITY];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private int[] mRssi = new int[INITIAL_CAPACITY];
+    private long[] mLastSeen = new long[INITIAL_CAPACITY];
+    private int[] mAdvertisementCount = new int[INITIAL_CAPACITY];
+    private final RssiEstimator mRssiEstimator = new RssiEstimator(INITIAL_CAPACITY);
+    // Positions by rank, and the rank of every position
+    private int[] mRanked = new int[INITIAL_CAPACITY];
+    private int[] mRankOf = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    // Records one advertisement
+    // Returns the device's position, or ~position (a negative number) if it was seen for the
+    // first time and has just been appended
+    public int update(String address, String name, D device, int rssi, long timestamp) {
+        Integer known = mIndex.get(address);
+        if (known != null) {
+            int position = known;
+            mDevices[position] = device;
+            if (name != null) {
+                mNames[position] = name;
+            }
+            mRssi[position] = rssi;
+            mLastSeen[position] = timestamp;
+            mAdvertisementCount[position]++;
+            mRssiEstimator.update(position, rssi, timestamp);
+            rerank(position, RANK_HYSTERESIS_DB);
+            return position;
+        }
+
+        ensureCapacity(mSize + 1);
+        int position = mSize++;
+        mIndex.put(address, position);
+        mDevices[position] = device;
+        mAddresses[position] = address;
+        mNames[position] = name;
+        mRssi[position] = rssi;
+        mLastSeen[position] = timestamp;
+        mAdvertisementCount[position] = 1;
+        mRssiEstimator.reset(position, rssi, timestamp);
+        mRanked[position] = position;
+        mRankOf[position] = position;
+        // Straight to where it belongs
+        rerank(position, 0f);
+        return ~position;
+    }
+
+    // Returns the position of a device, or -1 if it has not been seen
+    public int indexOf(String address) {
+        Integer position = mIndex.get(address);
+        return position == null ? -1 : position;
+    }
+
+    public boolean contains(String address) {
+        return mIndex.containsKey(address);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    public D getDevice(int position) {
+        checkPosition(position);
+        return (D) mDevices[position];
+    }
+
+    public String getAddress(int position) {
+        checkPosition(position);
+        return mAddresses[position];
+    }
+
+    public String getName(int position) {
+        checkPosition(position);
+        return mNames[position];
+    }
+
+    public int getRssi(int position) {
+        checkPosition(position);
+        return mRssi[position];
+    }
+
+    public long getLastSeen(int position) {
+        checkPosition(position);
+        return mLastSeen[position];
+    }
+
+    public int getAdvertisementCount(int position) {
+        checkPosition(position);
+        return mAdvertisementCount[position];
+    }
+
+    // Smoothed RSSI in dBm
+    public float getRssiEstimate(int position) {
+        checkPosition(position);
+        return mRssiEstimator.getEstimate(position);
+    }
+
+    // Position of the device at rank, 0 being the strongest
+    public int getRanked(int rank) {
+        checkPosition(rank);
+        return mRanked[rank];
+    }
+
+    public int getRank(int position) {
+        checkPosition(position);
+        return mRankOf[position];
+    }
+
+    // Drops every device that has not been heard since the given time
+    // Returns the number of devices removed. The survivors keep their relative order.
+    public int removeSeenBefore(long timestamp) {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mLastSeen[i] < timestamp) {
+                mIndex.remove(mAddresses[i]);
+                // Marks the position as gone for the ranking below
+                mRankOf[i] = -1;
+                continue;
+            }
+            if (kept != i) {
+                mDevices[kept] = mDevices[i];
+                mAddresses[kept] = mAddresses[i];
+                mNames[kept] = mNames[i];
+                mRssi[kept] = mRssi[i];
+                mLastSeen[kept] = mLastSeen[i];
+                mAdvertisementCount[kept] = mAdvertisementCount[i];
+                mRssiEstimator.move(i, kept);
+                mIndex.put(mAddresses[kept], kept);
+            }
+            // Old position to new, until the ranking is rebuilt
+            mRankOf[i] = kept;
+            kept++;
+        }
+        // The survivors keep their ranks relative to each other
+        int rank = 0;
+        for (int i = 0; i < mSize; i++) {
+            int position = mRankOf[mRanked[i]];
+            if (position >= 0) {
+                mRanked[rank++] = position;
+            }
+        }
+        for (int i = 0; i < kept; i++) {
+            mRankOf[mRanked[i]] = i;
+        }
+        int removed = mSize - kept;
+        Arrays.fill(mDevices, kept, mSize, null);
+        Arrays.fill(mAddresses, kept, mSize, null);
+        Arrays.fill(mNames, kept, mSize, null);
+        mSize = kept;
+        return removed;
+    }
+
+    // Immutable copy of the current contents, safe to hand to another thread
+    public ScanSnapshot snapshot() {
+        return new ScanSnapshot(Arrays.copyOf(mAddresses, mSize), Arrays.copyOf(mNames, mSize),
+                Arrays.copyOf(mDevices, mSize), Arrays.copyOf(mRssi, mSize),
+                Arrays.copyOf(mLastSeen, mSize), mSize);
+    }
+
+    // Same, strongest first, with the smoothed RSSI rounded to whole dBm
+    public ScanSnapshot rankedSnapshot() {
+        String[] addresses = new String[mSize];
+        String[] names = new String[mSize];
+        Object[] devices = new Object[mSize];
+        int[] rssi = new int[mSize];
+        long[] lastSeen = new long[mSize];
+        for (int rank = 0; rank < mSize; rank++) {
+            int position = mRanked[rank];
+            addresses[rank] = mAddresses[position];
+            names[rank] = mNames[position];
+            devices[rank] = mDevices[position];
+            rssi[rank] = Math.round(mRssiEstimator.getEstimate(position));
+            lastSeen[rank] = mLastSeen[position];
+        }
+        return new ScanSnapshot(addresses, names, devices, rssi, lastSeen, mSize);
+    }
+
+    public void clear() {
+        mIndex.clear();
+        Arrays.fill(mDevices, 0, mSize, null);
+        Arrays.fill(mAddresses, 0, mSize, null);
+        Arrays.fill(mNames, 0, mSize, null);
+        // Ranks are set up again as devices are added
+        mSize = 0;
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + mSize);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mDevices.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mDevices.length * 2);
+        mDevices = Arrays.copyOf(mDevices, newCapacity);
+        mAddresses = Arrays.copyOf(mAddresses, newCapacity);
+        mNames = Arrays.copyOf(mNames, newCapacity);
+        mRssi = Arrays.copyOf(mRssi, newCapacity);
+        mLastSeen = Arrays.copyOf(mLastSeen, newCapacity);
+        mAdvertisementCount = Arrays.copyOf(mAdvertisementCount, newCapacity);
+        mRssiEstimator.ensureCapacity(newCapacity);
+        mRanked = Arrays.copyOf(mRanked, newCapacity);
+        mRankOf = Arrays.copyOf(mRankOf, newCapacity);
+    }
+
+    // Moves position up or down the ranking past every neighbour it is more than margin dB
+    // stronger or weaker than. One step per advertisement in the common case.
+    private void rerank(int position, float margin) {
+        float estimate = mRssiEstimator.getEstimate(position);
+        int rank = mRankOf[position];
+        while (rank > 0 && estimate > mRssiEstimator.getEstimate(mRanked[rank - 1]) + margin) {
+            swapRanks(rank, rank - 1);
+            rank--;
+        }
+        while (rank < mSize - 1 && estimate < mRssiEstimator.getEstimate(mRanked[rank + 1]) - margin) {
+            swapRanks(rank, rank + 1);
+            rank++;
+        }
+    }
+
+    private void swapRanks(int a, int b) {
+        int position = mRanked[a];
+        mRanked[a] = mRanked[b];
+        mRanked[b] = position;
+        mRankOf[mRanked[a]] = a;
+        mRankOf[mRanked[b]] = b;
+    }
+}
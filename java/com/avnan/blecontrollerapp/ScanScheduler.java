@@ -0,0 +1,173 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.Collection;
+import java.util.HashSet;
+
+// Decides when to scan, how hard, and for how long
+// A scan runs at one of three levels: low latency until the devices we are looking for have been
+// found, then balanced, then low power for the scans that keep the list fresh while the app sits
+// open. Between background scans the scheduler waits, twice as long after every scan that turned
+// up nothing new, and drops back to low latency as soon as one does or the user asks for a scan.
+// A scan ends before its window is up once its device set has converged: every target, or every
+// device known from earlier scans, has been heard from, or nothing new has appeared for a while.
+// Starts are limited by a token bucket shaped like the platform's own limit (MAX_STARTS per
+// START_WINDOW_MS; more gets the app's scans silently throttled): every start spends a token
+// and the token comes back one window later.
+// Thread safe. Android-free; times are elapsed-realtime milliseconds.
+public class ScanScheduler {
+    // Same values as ScanSettings.SCAN_MODE_*
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public static final int MAX_STARTS = 5;
+    // The platform counts 30 s; a little slack keeps clock differences from tripping it
+    public static final long START_WINDOW_MS = 31000;
+
+    public static final long DEFAULT_MIN_IDLE_MS = 30000;
+    public static final long DEFAULT_MAX_IDLE_MS = 10 * 60 * 1000;
+
+    // Scan window by level; the mode is MODE_LOW_LATENCY - level
+    private static final long[] WINDOW_MS = {5000, 8000, 10000};
+    // A scan is not judged converged before it has run this long
+    private static final long MIN_WINDOW_MS = 1500;
+    // How long nothing new may appear before the set counts as converged, by level
+    private static final long[] QUIET_MS = {2000, 3000, 4000};
+
+    // When each token comes back, oldest first as a ring
+    private final long[] mTokenReturns = new long[MAX_STARTS];
+    private int mNextToken;
+
+    private final HashSet<String> mTargets = new HashSet<>();
+    // Every device heard from so far
+    private final HashSet<String> mKnown = new HashSet<>();
+    private final HashSet<String> mSeenInScan = new HashSet<>();
+    private long mMinIdle = DEFAULT_MIN_IDLE_MS;
+    private long mMaxIdle = DEFAULT_MAX_IDLE_MS;
+
+    private int mLevel;
+    private long mIdle;
+    private boolean mScanning;
+    private long mScanStarted;
+    private long mLastNew;
+    private int mNewInScan;
+    // When the next scan is due, 0 for as soon as a token allows, -1 if none is planned
+    private long mNextScan = 0;
+
+    public synchronized void setIdleRange(long minIdleMillis, long maxIdleMillis) {
+        if (minIdleMillis <= 0 || maxIdleMillis < minIdleMillis) {
+            throw new IllegalArgumentException("Invalid idle range");
+        }
+        mMinIdle = minIdleMillis;
+        mMaxIdle = maxIdleMillis;
+    }
+
+    // Devices a scan is looking for; once all of them have been heard from the scan may end
+    public synchronized void setTargets(Collection<String> addresses) {
+        mTargets.clear();
+        mTargets.addAll(addresses);
+    }
+
+    // The user wants a fresh list: low latency, as soon as a token allows
+    public synchronized void requestScan() {
+        mLevel = 0;
+        mIdle = 0;
+        mNextScan = 0;
+    }
+
+    // No more background scans until requestScan()
+    public synchronized void pause() {
+        mNextScan = -1;
+    }
+
+    // How long until the next scan may start: 0 for now, -1 if none is planned or one is running
+    public synchronized long untilNextScan(long now) {
+        if (mScanning || mNextScan < 0) {
+            return -1;
+        }
+        long due = Math.max(mNextScan, mTokenReturns[mNextToken]);
+        return Math.max(0, due - now);
+    }
+
+    // Call right before starting the scan; returns the ScanSettings mode to use
+    public synchronized int onScanStarted(long now) {
+        mTokenReturns[mNextToken] = now + START_WINDOW_MS;
+        mNextToken = (mNextToken + 1) % MAX_STARTS;
+        mScanning = true;
+        mScanStarted = now;
+        mLastNew = now;
+        mNewInScan = 0;
+        mSeenInScan.clear();
+        return MODE_LOW_LATENCY - mLevel;
+    }
+
+    // How long the running scan may last at most
+    public synchronized long getWindow() {
+        return WINDOW_MS[mLevel];
+    }
+
+    // now is when the device was heard; sightings from before the scan started are ignored
+    public synchronized void onDeviceSeen(String address, long now) {
+        if (!mScanning || now < mScanStarted || !mSeenInScan.add(address)) {
+            return;
+        }
+        mLastNew = now;
+        if (mKnown.add(address)) {
+            mNewInScan++;
+        }
+    }
+
+    // Whether the running scan has found what it is going to find
+    public synchronized boolean hasConverged(long now) {
+        if (!mScanning) {
+            return false;
+        }
+        if (!mTargets.isEmpty() && mSeenInScan.containsAll(mTargets)) {
+            return true;
+        }
+        if (now - mScanStarted < MIN_WINDOW_MS) {
+            return false;
+        }
+        if (mNewInScan == 0 && !mKnown.isEmpty() && mSeenInScan.size() == mKnown.size()) {
+            // Everyone from before is still there and nobody new showed up
+            return true;
+        }
+        return !mSeenInScan.isEmpty() && now - mLastNew >= QUIET_MS[mLevel];
+    }
+
+    // Call once the scan is stopped, whether its window ran out or it converged. Plans the next one.
+    public synchronized void onScanStopped(long now) {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        boolean targetsFound = mTargets.isEmpty() || mKnown.containsAll(mTargets);
+        if (mNewInScan > 0 || !targetsFound) {
+            // Still finding things, or not what we are after: keep looking hard, soon
+            mLevel = targetsFound ? Math.min(mLevel, 1) : 0;
+            mIdle = mMinIdle;
+        } else {
+            // Nothing new; look less often and with less power
+            mLevel = Math.min(mLevel + 1, WINDOW_MS.length - 1);
+            mIdle = mIdle == 0 ? mMinIdle : Math.min(mIdle * 2, mMaxIdle);
+        }
+        if (mNextScan >= 0) {
+            mNextScan = now + mIdle;
+        }
+    }
+
+    public synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    // Number of starts allowed right now
+    public synchronized int getAvailableStarts(long now) {
+        int available = 0;
+        for (long tokenReturn : mTokenReturns) {
+            if (tokenReturn <= now) {
+                available++;
+            }
+        }
+        return available;
+    }
+}
@@ -0,0 +1,105 @@
+package com.avnan.blecontrollerapp;
+
+// An immutable copy of the scan list at one point in time
+// Snapshots are what gets handed between threads: the scan side produces them, the adapter
+// diffs consecutive ones in the background and then displays the newer one. Android-free.
+public final class ScanSnapshot {
+    // Change flags reported by diff()
+    public static final int CHANGE_NAME = 1;
+    public static final int CHANGE_RSSI = 1 << 1;
+
+    public static final ScanSnapshot EMPTY =
+            new ScanSnapshot(new String[0], new String[0], new Object[0], new int[0], new long[0], 0);
+
+    private final String[] mAddresses;
+    private final String[] mNames;
+    private final Object[] mDevices;
+    private final int[] mRssi;
+    private final long[] mLastSeen;
+    private final int mSize;
+
+    // Takes ownership of the arrays
+    ScanSnapshot(String[] addresses, String[] names, Object[] devices, int[] rssi,
+                 long[] lastSeen, int size) {
+        mAddresses = addresses;
+        mNames = names;
+        mDevices = devices;
+        mRssi = rssi;
+        mLastSeen = lastSeen;
+        mSize = size;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public String getAddress(int position) {
+        return mAddresses[position];
+    }
+
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    @SuppressWarnings("unchecked")
+    public <D> D getDevice(int position) {
+        return (D) mDevices[position];
+    }
+
+    public int getRssi(int position) {
+        return mRssi[position];
+    }
+
+    public long getLastSeen(int position) {
+        return mLastSeen[position];
+    }
+
+    // Position of the device with address, or -1 if it is not in the list
+    public int indexOf(String address) {
+        for (int i = 0; i < mSize; i++) {
+            if (mAddresses[i].equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Minimal updates that turn before into after, keyed by address
+    public static ListDiff.Result diff(final ScanSnapshot before, final ScanSnapshot after) {
+        return ListDiff.calculate(new ListDiff.Callback() {
+            @Override
+            public int getOldSize() {
+                return before.mSize;
+            }
+
+            @Override
+            public int getNewSize() {
+                return after.mSize;
+            }
+
+            @Override
+            public Object getOldKey(int oldPosition) {
+                return before.mAddresses[oldPosition];
+            }
+
+            @Override
+            public Object getNewKey(int newPosition) {
+                return after.mAddresses[newPosition];
+            }
+
+            @Override
+            public int getChanges(int oldPosition, int newPosition) {
+                int changes = 0;
+                String oldName = before.mNames[oldPosition];
+                String newName = after.mNames[newPosition];
+                if (oldName == null ? newName != null : !oldName.equals(newName)) {
+                    changes |= CHANGE_NAME;
+                }
+                if (before.mRssi[oldPosition] != after.mRssi[newPosition]) {
+                    changes |= CHANGE_RSSI;
+                }
+                return changes;
+            }
+        });
+    }
+}
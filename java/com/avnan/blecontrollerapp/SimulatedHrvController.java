@@ -0,0 +1,135 @@
+package com.avnan.blecontrollerapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+// A virtual HRV controller, behaving over GATT the way the ESP32 firmware does
+// Hosts device information (firmware revision) and the HRV control service. Every well formed
+// rt3 timer command written to the control characteristic starts the fan timer and is
+// acknowledged with rt2,1\r\n on the acknowledge characteristic; anything else is ignored, like
+// the firmware does. Several commands may be packed into one write. The timer characteristic
+// reads as the remaining seconds in ASCII decimal.
+// Hosted by a SimulatedTransport, which adds the radio: latency, loss and dropped links.
+// Thread safe. Android-free; times are in milliseconds on any monotonic clock.
+public class SimulatedHrvController {
+    public static final String DEFAULT_FIRMWARE_REVISION = "sim-1.0";
+
+    // Same values as BluetoothGattCharacteristic.PROPERTY_*
+    static final int PROPERTY_READ = 0x02;
+    static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    static final int PROPERTY_WRITE = 0x08;
+    static final int PROPERTY_NOTIFY = 0x10;
+
+    private static final byte[] ACCEPTED = "rt2,1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // The database is the same for every unit, with the handles the firmware ends up with
+    private static final GattLayout LAYOUT = new GattLayout.Builder()
+            .addCharacteristic(GattAttributes.DEVICE_INFORMATION_SERV_UUID, 1,
+                    GattAttributes.FIRMWARE_REVISION_UUID, 3, PROPERTY_READ)
+            .addCharacteristic(GattAttributes.HRV_CONTROL_SERV_UUID, 10,
+                    GattAttributes.HRV_CONTROL_CHAR_UUID, 12, PROPERTY_WRITE | PROPERTY_WRITE_NO_RESPONSE)
+            .addCharacteristic(GattAttributes.HRV_CONTROL_SERV_UUID, 10,
+                    GattAttributes.CONTROL_ACKNOWLEDGE_UUID, 14, PROPERTY_READ | PROPERTY_NOTIFY)
+            .addCharacteristic(GattAttributes.HRV_CONTROL_SERV_UUID, 10,
+                    GattAttributes.TIMER_VAL_UUID, 17, PROPERTY_READ | PROPERTY_NOTIFY)
+            .build();
+
+    private final String mAddress;
+    private String mFirmwareRevision = DEFAULT_FIRMWARE_REVISION;
+    private int mRssi = -60;
+    private int mUnitId;
+    private long mTimerEnd;
+    private long mCommands;
+    private long mIgnored;
+
+    public SimulatedHrvController(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public GattLayout getLayout() {
+        return LAYOUT;
+    }
+
+    public synchronized String getFirmwareRevision() {
+        return mFirmwareRevision;
+    }
+
+    // A firmware update, as far as the app's profile cache is concerned
+    public synchronized void setFirmwareRevision(String firmwareRevision) {
+        mFirmwareRevision = firmwareRevision;
+    }
+
+    public synchronized int getRssi() {
+        return mRssi;
+    }
+
+    public synchronized void setRssi(int rssi) {
+        mRssi = rssi;
+    }
+
+    // Handles a write to characteristic. Returns how many commands to acknowledge.
+    public synchronized int onWrite(UUID characteristic, byte[] value, long now) {
+        if (!GattAttributes.HRV_CONTROL_CHAR_UUID.equals(characteristic)) {
+            return 0;
+        }
+        int accepted = 0;
+        int offset = 0;
+        for (; offset + ControlProtocol.COMMAND_LENGTH <= value.length; offset += ControlProtocol.COMMAND_LENGTH) {
+            int minutes = ControlProtocol.decodeTimerMinutes(value, offset, ControlProtocol.COMMAND_LENGTH);
+            if (minutes < 0) {
+                mIgnored++;
+                continue;
+            }
+            mUnitId = value[offset + 10] - '0';
+            mTimerEnd = now + minutes * 60000L;
+            mCommands++;
+            accepted++;
+        }
+        if (offset != value.length) {
+            // A partial command at the end
+            mIgnored++;
+        }
+        return accepted;
+    }
+
+    // The value of characteristic, or null if it cannot be read
+    public synchronized byte[] read(UUID characteristic, long now) {
+        if (GattAttributes.FIRMWARE_REVISION_UUID.equals(characteristic)) {
+            return mFirmwareRevision.getBytes(StandardCharsets.UTF_8);
+        }
+        if (GattAttributes.TIMER_VAL_UUID.equals(characteristic)) {
+            return Integer.toString(getRemainingSeconds(now)).getBytes(StandardCharsets.US_ASCII);
+        }
+        if (GattAttributes.CONTROL_ACKNOWLEDGE_UUID.equals(characteristic)) {
+            return acknowledgement();
+        }
+        return null;
+    }
+
+    // The notification that acknowledges one command
+    public byte[] acknowledgement() {
+        return ACCEPTED.clone();
+    }
+
+    public synchronized int getRemainingSeconds(long now) {
+        return mTimerEnd > now ? (int) ((mTimerEnd - now + 999) / 1000) : 0;
+    }
+
+    // Unit the last accepted command was addressed to, 0 before the first
+    public synchronized int getUnitId() {
+        return mUnitId;
+    }
+
+    public synchronized long getCommandCount() {
+        return mCommands;
+    }
+
+    // Malformed or unsupported commands
+    public synchronized long getIgnoredCount() {
+        return mIgnored;
+    }
+}
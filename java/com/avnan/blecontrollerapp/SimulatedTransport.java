@@ -0,0 +1,559 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// GattTransport over SimulatedHrvControllers in the same process, for load, reconnect-storm and
+// soak runs with any number of devices and no radio
+// The link is where things go wrong, and how badly is configurable:
+// - latency: every request, response and notification takes a random time in a range
+// - loss: a packet never arrives. A lost request or response means the operation's callback never
+//   comes (the operation queue times out), a lost notification is simply missing.
+// - disconnect rate: the chance that any one operation drops the link with status 133 instead
+// - connect failures: the chance that a connection attempt ends in 133
+// Controllers can be moved out of range, which drops their links with a supervision timeout (8)
+// and holds background (autoConnect) attempts until they come back.
+// Callbacks run on the executor passed in, never inside the call that caused them. A fixed seed
+// makes the injected faults repeatable for a given sequence of calls.
+// Thread safe. Android-free.
+public class SimulatedTransport implements GattTransport {
+    // Same values as BluetoothDevice.PHY_LE_*
+    private static final int PHY_LE_1M = 1;
+    private static final int PHY_LE_2M = 2;
+    // Connection intervals (1.25 ms units) the Android stack settles on for each priority
+    private static final int INTERVAL_HIGH = 12;
+    private static final int INTERVAL_BALANCED = 36;
+    private static final int INTERVAL_LOW_POWER = 80;
+    private static final int SUPERVISION_TIMEOUT = 500;
+
+    private static final int LINK_CONNECTING = 0;
+    private static final int LINK_CONNECTED = 1;
+    private static final int LINK_DISCONNECTED = 2;
+    private static final int LINK_CLOSED = 3;
+
+    private final ScheduledExecutorService mExecutor;
+    private final Random mRandom;
+    private final ConcurrentHashMap<String, SimulatedHrvController> mControllers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> mOutOfRange = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<SimulatedLink> mLinks = new CopyOnWriteArrayList<>();
+
+    private volatile long mMinLatencyMs = 5;
+    private volatile long mMaxLatencyMs = 30;
+    private volatile long mMinConnectMs = 50;
+    private volatile long mMaxConnectMs = 300;
+    // How long a direct connection attempt waits for a device that is not there, like the stack
+    private volatile long mConnectTimeoutMs = 30000;
+    private volatile double mLossRate;
+    private volatile double mDisconnectRate;
+    private volatile double mConnectFailureRate;
+    private volatile int mMaxMtu = 517;
+
+    private final AtomicLong mLostPackets = new AtomicLong();
+    private final AtomicLong mInjectedDisconnects = new AtomicLong();
+    private final AtomicLong mFailedConnects = new AtomicLong();
+
+    public SimulatedTransport(ScheduledExecutorService executor, long seed) {
+        mExecutor = executor;
+        mRandom = new Random(seed);
+    }
+
+    public void addController(SimulatedHrvController controller) {
+        mControllers.put(controller.getAddress(), controller);
+        connectWaiting(controller.getAddress());
+    }
+
+    public SimulatedHrvController getController(String address) {
+        return mControllers.get(address);
+    }
+
+    public List<SimulatedHrvController> getControllers() {
+        return new ArrayList<>(mControllers.values());
+    }
+
+    // Out of range drops every link to the device; back in range completes background attempts
+    public void setInRange(String address, boolean inRange) {
+        if (inRange) {
+            mOutOfRange.remove(address);
+            connectWaiting(address);
+            return;
+        }
+        mOutOfRange.put(address, Boolean.TRUE);
+        for (SimulatedLink link : mLinks) {
+            if (link.mAddress.equals(address)) {
+                link.drop(GATT_CONNECTION_TIMEOUT);
+            }
+        }
+    }
+
+    public boolean isInRange(String address) {
+        return mControllers.containsKey(address) && !mOutOfRange.containsKey(address);
+    }
+
+    public void setLatency(long minMs, long maxMs) {
+        mMinLatencyMs = minMs;
+        mMaxLatencyMs = Math.max(minMs, maxMs);
+    }
+
+    public void setConnectDelay(long minMs, long maxMs) {
+        mMinConnectMs = minMs;
+        mMaxConnectMs = Math.max(minMs, maxMs);
+    }
+
+    public void setConnectTimeout(long timeoutMs) {
+        mConnectTimeoutMs = timeoutMs;
+    }
+
+    public void setLossRate(double lossRate) {
+        mLossRate = lossRate;
+    }
+
+    public void setDisconnectRate(double disconnectRate) {
+        mDisconnectRate = disconnectRate;
+    }
+
+    public void setConnectFailureRate(double connectFailureRate) {
+        mConnectFailureRate = connectFailureRate;
+    }
+
+    public void setMaxMtu(int maxMtu) {
+        mMaxMtu = maxMtu;
+    }
+
+    public long getLostPackets() {
+        return mLostPackets.get();
+    }
+
+    public long getInjectedDisconnects() {
+        return mInjectedDisconnects.get();
+    }
+
+    public long getFailedConnects() {
+        return mFailedConnects.get();
+    }
+
+    // Links opened and not yet closed
+    public int getOpenLinkCount() {
+        return mLinks.size();
+    }
+
+    @Override
+    public Link connect(String address, boolean background, Callback callback) {
+        SimulatedLink link = new SimulatedLink(address, background, callback);
+        mLinks.add(link);
+        if (isInRange(address)) {
+            link.establish();
+        } else if (!background) {
+            link.schedule(mConnectTimeoutMs, new Runnable() {
+                @Override
+                public void run() {
+                    link.failConnect();
+                }
+            });
+        }
+        // A background link waits in mLinks until its controller comes into range
+        return link;
+    }
+
+    private void connectWaiting(String address) {
+        if (!isInRange(address)) {
+            return;
+        }
+        for (SimulatedLink link : mLinks) {
+            if (link.mAddress.equals(address) && link.mBackground && link.isConnecting()) {
+                link.establish();
+            }
+        }
+    }
+
+    private synchronized boolean chance(double probability) {
+        return probability > 0 && mRandom.nextDouble() < probability;
+    }
+
+    private synchronized long between(long min, long max) {
+        return max <= min ? min : min + (long) (mRandom.nextDouble() * (max - min + 1));
+    }
+
+    private long latency() {
+        return between(mMinLatencyMs, mMaxLatencyMs);
+    }
+
+    // A packet that does not make it across
+    private boolean lost() {
+        if (chance(mLossRate)) {
+            mLostPackets.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private final class SimulatedLink implements Link {
+        final String mAddress;
+        // Set once the link is reconnected, which always waits for the device
+        volatile boolean mBackground;
+        private final Callback mCallback;
+        private int mState = LINK_CONNECTING;
+        private boolean mEstablishing;
+        private boolean mDiscovered;
+        private final List<UUID> mNotifying = new ArrayList<>();
+
+        SimulatedLink(String address, boolean background, Callback callback) {
+            mAddress = address;
+            mBackground = background;
+            mCallback = callback;
+        }
+
+        synchronized boolean isConnecting() {
+            return mState == LINK_CONNECTING && !mEstablishing;
+        }
+
+        synchronized boolean isConnected() {
+            return mState == LINK_CONNECTED;
+        }
+
+        void schedule(long delayMs, Runnable task) {
+            mExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        void establish() {
+            synchronized (this) {
+                if (mState != LINK_CONNECTING || mEstablishing) {
+                    return;
+                }
+                mEstablishing = true;
+            }
+            schedule(between(mMinConnectMs, mMaxConnectMs), new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimulatedLink.this) {
+                        mEstablishing = false;
+                        if (mState != LINK_CONNECTING) {
+                            return;
+                        }
+                    }
+                    if (!isInRange(mAddress)) {
+                        // Went away while we were connecting
+                        if (!mBackground) {
+                            failConnect();
+                        }
+                        return;
+                    }
+                    if (chance(mConnectFailureRate)) {
+                        failConnect();
+                        return;
+                    }
+                    synchronized (SimulatedLink.this) {
+                        mState = LINK_CONNECTED;
+                    }
+                    mCallback.onConnectionStateChange(SimulatedLink.this, GATT_SUCCESS, STATE_CONNECTED);
+                }
+            });
+        }
+
+        void failConnect() {
+            synchronized (this) {
+                if (mState != LINK_CONNECTING) {
+                    return;
+                }
+                mState = LINK_DISCONNECTED;
+            }
+            mFailedConnects.incrementAndGet();
+            mCallback.onConnectionStateChange(this, GATT_ERROR, STATE_DISCONNECTED);
+        }
+
+        void drop(final int status) {
+            synchronized (this) {
+                if (mState != LINK_CONNECTED) {
+                    return;
+                }
+                mState = LINK_DISCONNECTED;
+                mNotifying.clear();
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isClosed()) {
+                        mCallback.onConnectionStateChange(SimulatedLink.this, status, STATE_DISCONNECTED);
+                    }
+                }
+            });
+        }
+
+        synchronized boolean isClosed() {
+            return mState == LINK_CLOSED;
+        }
+
+        // Runs the response half of an operation after one link latency, unless the link goes
+        // down first, the response is lost, or the operation takes the link down with it
+        private boolean respond(final Runnable response) {
+            if (!isConnected()) {
+                return false;
+            }
+            schedule(latency(), new Runnable() {
+                @Override
+                public void run() {
+                    if (!isConnected()) {
+                        return;
+                    }
+                    if (chance(mDisconnectRate)) {
+                        mInjectedDisconnects.incrementAndGet();
+                        drop(GATT_ERROR);
+                        return;
+                    }
+                    if (lost()) {
+                        return;
+                    }
+                    response.run();
+                }
+            });
+            return true;
+        }
+
+        private void notify(final UUID characteristic, final byte[] value, long delayMs) {
+            schedule(delayMs, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimulatedLink.this) {
+                        if (mState != LINK_CONNECTED || !mNotifying.contains(characteristic)) {
+                            return;
+                        }
+                    }
+                    if (!lost()) {
+                        mCallback.onCharacteristicChanged(SimulatedLink.this, characteristic, value);
+                    }
+                }
+            });
+        }
+
+        private int propertiesOf(UUID service, UUID characteristic) {
+            GattLayout layout = mControllers.get(mAddress).getLayout();
+            int row = layout.findCharacteristic(service, characteristic);
+            return row < 0 ? 0 : layout.getCharacteristicProperties(row);
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public synchronized GattLayout getLayout() {
+            return mDiscovered ? mControllers.get(mAddress).getLayout() : null;
+        }
+
+        @Override
+        public void disconnect() {
+            synchronized (this) {
+                if (mState != LINK_CONNECTED && mState != LINK_CONNECTING) {
+                    return;
+                }
+                mState = LINK_DISCONNECTED;
+                mNotifying.clear();
+            }
+            schedule(latency(), new Runnable() {
+                @Override
+                public void run() {
+                    if (!isClosed()) {
+                        mCallback.onConnectionStateChange(SimulatedLink.this, GATT_SUCCESS, STATE_DISCONNECTED);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean reconnect() {
+            synchronized (this) {
+                if (mState != LINK_DISCONNECTED) {
+                    return false;
+                }
+                mState = LINK_CONNECTING;
+                mBackground = true;
+            }
+            // Otherwise it waits in mLinks, still discovered, until its controller is back
+            if (isInRange(mAddress)) {
+                establish();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                mState = LINK_CLOSED;
+                mNotifying.clear();
+            }
+            mLinks.remove(this);
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return respond(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimulatedLink.this) {
+                        mDiscovered = true;
+                    }
+                    mCallback.onServicesDiscovered(SimulatedLink.this, GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID service, final UUID characteristic) {
+            if ((propertiesOf(service, characteristic) & SimulatedHrvController.PROPERTY_READ) == 0) {
+                return false;
+            }
+            return respond(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] value = mControllers.get(mAddress).read(characteristic, now());
+                    mCallback.onCharacteristicRead(SimulatedLink.this, characteristic, value, GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, final UUID characteristic, byte[] value, int writeType) {
+            int required = writeType == WRITE_TYPE_NO_RESPONSE
+                    ? SimulatedHrvController.PROPERTY_WRITE_NO_RESPONSE : SimulatedHrvController.PROPERTY_WRITE;
+            if ((propertiesOf(service, characteristic) & required) == 0 || !isConnected()) {
+                return false;
+            }
+            final byte[] copy = value.clone();
+            final SimulatedHrvController controller = mControllers.get(mAddress);
+            if (writeType == WRITE_TYPE_NO_RESPONSE) {
+                // The stack reports these done once they are handed to the controller, whether or
+                // not they arrive
+                final boolean lost = lost();
+                schedule(1, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isConnected()) {
+                            mCallback.onCharacteristicWrite(SimulatedLink.this, characteristic, GATT_SUCCESS);
+                        }
+                    }
+                });
+                if (!lost) {
+                    schedule(latency(), new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isConnected()) {
+                                acknowledge(controller, controller.onWrite(characteristic, copy, now()), 0);
+                            }
+                        }
+                    });
+                }
+                return true;
+            }
+            return respond(new Runnable() {
+                @Override
+                public void run() {
+                    int acks = controller.onWrite(characteristic, copy, now());
+                    mCallback.onCharacteristicWrite(SimulatedLink.this, characteristic, GATT_SUCCESS);
+                    acknowledge(controller, acks, latency() / 2);
+                }
+            });
+        }
+
+        private void acknowledge(SimulatedHrvController controller, int acks, long delayMs) {
+            for (int i = 0; i < acks; i++) {
+                notify(GattAttributes.CONTROL_ACKNOWLEDGE_UUID, controller.acknowledgement(), delayMs);
+            }
+        }
+
+        @Override
+        public int setCharacteristicNotification(UUID service, final UUID characteristic, final boolean enable) {
+            if ((propertiesOf(service, characteristic) & SimulatedHrvController.PROPERTY_NOTIFY) == 0) {
+                return NOTIFICATION_FAILED;
+            }
+            return respond(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimulatedLink.this) {
+                        mNotifying.remove(characteristic);
+                        if (enable) {
+                            mNotifying.add(characteristic);
+                        }
+                    }
+                    mCallback.onDescriptorWrite(SimulatedLink.this, characteristic, GATT_SUCCESS);
+                }
+            }) ? NOTIFICATION_PENDING : NOTIFICATION_FAILED;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            // Answered by the local controller, no packet involved
+            if (!isConnected()) {
+                return false;
+            }
+            final int rssi = mControllers.get(mAddress).getRssi() + (int) between(-3, 3);
+            schedule(1, new Runnable() {
+                @Override
+                public void run() {
+                    if (isConnected()) {
+                        mCallback.onReadRemoteRssi(SimulatedLink.this, rssi, GATT_SUCCESS);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(final int mtu) {
+            return respond(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onMtuChanged(SimulatedLink.this, Math.min(mtu, mMaxMtu), GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            final int interval = priority == CONNECTION_PRIORITY_HIGH ? INTERVAL_HIGH
+                    : priority == CONNECTION_PRIORITY_LOW_POWER ? INTERVAL_LOW_POWER : INTERVAL_BALANCED;
+            final int latency = priority == CONNECTION_PRIORITY_LOW_POWER ? 2 : 0;
+            // Not an operation: the update is not serialized with the queue and cannot be lost
+            if (!isConnected()) {
+                return false;
+            }
+            schedule(latency(), new Runnable() {
+                @Override
+                public void run() {
+                    if (isConnected()) {
+                        mCallback.onConnectionUpdated(SimulatedLink.this, interval, latency,
+                                SUPERVISION_TIMEOUT, GATT_SUCCESS);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean setPreferredPhy(int phyMask) {
+            final int phy = (phyMask & PHY_LE_2M_MASK) != 0 ? PHY_LE_2M : PHY_LE_1M;
+            if (!isConnected()) {
+                return false;
+            }
+            schedule(latency(), new Runnable() {
+                @Override
+                public void run() {
+                    if (isConnected()) {
+                        mCallback.onPhyUpdate(SimulatedLink.this, phy, phy, GATT_SUCCESS);
+                    }
+                }
+            });
+            return true;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.avnan.blecontrollerapp;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+// Markers for the phases between launching the app and a controller being ready for commands
+// Phases may begin and end on different threads and in different activities, so they show up in
+// systrace / Perfetto as async sections (Android 10 and later) and their durations are logged in
+// debug builds. A phase that is begun again before it ended starts over.
+// Only touched on the main thread.
+public final class StartupTrace {
+    private static final String LOG_TAG = StartupTrace.class.getSimpleName();
+
+    // First activity created until its first frame
+    public static final String FIRST_FRAME = "startup:first_frame";
+    // Checking for Bluetooth, location and permissions, until a scan can start
+    public static final String PREREQUISITES = "startup:prerequisites";
+    // Scan started until the known controller was seen, or the scan ended
+    public static final String SCAN = "startup:scan";
+    // Device selected until its link is ready for commands
+    public static final String CONNECT = "startup:connect";
+
+    private static final String[] PHASES = {FIRST_FRAME, PREREQUISITES, SCAN, CONNECT};
+    private static final long[] sStarted = new long[PHASES.length];
+
+    private StartupTrace() {
+    }
+
+    public static void begin(String phase) {
+        int index = indexOf(phase);
+        if (sStarted[index] != 0) {
+            end(phase);
+        }
+        sStarted[index] = SystemClock.elapsedRealtime();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(phase, index);
+        }
+    }
+
+    // Does nothing if the phase is not running
+    public static void end(String phase) {
+        int index = indexOf(phase);
+        if (sStarted[index] == 0) {
+            return;
+        }
+        long duration = SystemClock.elapsedRealtime() - sStarted[index];
+        sStarted[index] = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(phase, index);
+        }
+        BleLog.d(LOG_TAG, "", phase, " took ms: ", duration);
+    }
+
+    private static int indexOf(String phase) {
+        for (int i = 0; i < PHASES.length; i++) {
+            if (PHASES[i].equals(phase)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown startup phase " + phase);
+    }
+}
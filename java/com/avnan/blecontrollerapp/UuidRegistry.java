@@ -0,0 +1,111 @@
+package com.avnan.blecontrollerapp;
+
+import java.util.UUID;
+
+// Maps 128-bit UUIDs to a small integer ID and a display name
+// The table is open addressed with linear probing and keyed directly by the two longs of the
+// UUID, so a lookup hashes no Strings and allocates nothing. Registration copies the table and
+// publishes the copy, which keeps lookups lock free; registrations are rare (start-up, vendor
+// profiles) while lookups happen for every attribute of every discovery.
+// Android-free.
+public final class UuidRegistry {
+    public static final int UNKNOWN = 0;
+
+    private static final class Table {
+        final long[] mMsb;
+        final long[] mLsb;
+        final int[] mIds;
+        final String[] mNames;
+        final int mSize;
+
+        Table(int capacity, int size) {
+            mMsb = new long[capacity];
+            mLsb = new long[capacity];
+            mIds = new int[capacity];
+            mNames = new String[capacity];
+            mSize = size;
+        }
+    }
+
+    private volatile Table mTable = new Table(16, 0);
+
+    // Adds or replaces an entry. id must not be UNKNOWN.
+    public synchronized void register(UUID uuid, int id, String name) {
+        if (id == UNKNOWN) {
+            throw new IllegalArgumentException("ID " + UNKNOWN + " is reserved for unknown UUIDs");
+        }
+        Table current = mTable;
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        boolean replacing = find(current, msb, lsb) >= 0;
+        int size = replacing ? current.mSize : current.mSize + 1;
+        // Keep the load factor at or below one half so probe sequences stay short
+        int capacity = current.mMsb.length;
+        while (size * 2 > capacity) {
+            capacity *= 2;
+        }
+        Table next = new Table(capacity, size);
+        for (int i = 0; i < current.mIds.length; i++) {
+            if (current.mIds[i] != UNKNOWN) {
+                insert(next, current.mMsb[i], current.mLsb[i], current.mIds[i], current.mNames[i]);
+            }
+        }
+        insert(next, msb, lsb, id, name);
+        mTable = next;
+    }
+
+    // Returns the registered ID, or UNKNOWN
+    public int idOf(UUID uuid) {
+        return idOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public int idOf(long msb, long lsb) {
+        Table table = mTable;
+        int slot = find(table, msb, lsb);
+        return slot < 0 ? UNKNOWN : table.mIds[slot];
+    }
+
+    // Returns the registered name, or defaultName
+    public String nameOf(UUID uuid, String defaultName) {
+        Table table = mTable;
+        int slot = find(table, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return slot < 0 ? defaultName : table.mNames[slot];
+    }
+
+    public int size() {
+        return mTable.mSize;
+    }
+
+    private static int find(Table table, long msb, long lsb) {
+        int mask = table.mIds.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (table.mIds[slot] != UNKNOWN) {
+            if (table.mMsb[slot] == msb && table.mLsb[slot] == lsb) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static void insert(Table table, long msb, long lsb, int id, String name) {
+        int mask = table.mIds.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (table.mIds[slot] != UNKNOWN
+                && !(table.mMsb[slot] == msb && table.mLsb[slot] == lsb)) {
+            slot = (slot + 1) & mask;
+        }
+        table.mMsb[slot] = msb;
+        table.mLsb[slot] = lsb;
+        table.mIds[slot] = id;
+        table.mNames[slot] = name;
+    }
+
+    // Bluetooth base UUIDs only differ in a few bits of the msb, so mix everything down
+    private static int hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 32;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 29));
+    }
+}
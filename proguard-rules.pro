@@ -0,0 +1,18 @@
+# Project specific ProGuard / R8 rules, applied to release builds with minifyEnabled together with
+# proguard-android-optimize.txt
+
+# Debug and verbose logging is not shipped. Calls whose result is unused are removed; the
+# BleLog.DEBUG guards at call sites already drop the strings they would have built.
+-assumenosideeffects class android.util.Log {
+    public static boolean isLoggable(java.lang.String, int);
+    public static int v(...);
+    public static int d(...);
+}
+
+-assumenosideeffects class com.avnan.blecontrollerapp.BleLog {
+    public static void d(...);
+}
+
+-assumevalues class com.avnan.blecontrollerapp.BleLog {
+    public static boolean isDebugEnabled() return false;
+}